@@ -14,112 +14,96 @@ function loadProjects() {
     resetState();
     $projects = $('#projects');
     $projectEntries = $('#project-picker');
-    readProjects(function(projectsRaw) {
-        let projects = JSON.parse(projectsRaw);
-        projects.forEach(project => {
-            readTargets(project, function(targetsRaw) {
-                let projectDisplayName = targetsRaw.display_name;
-                let targets = JSON.parse(targetsRaw.targets);
-                targets.forEach(target => {
-                    readTypes(project, target, function(typesRaw) {
-                        let targetDisplayName = typesRaw.display_name;
-                        let types = JSON.parse(typesRaw.types);
-                        types.forEach(type => {
-                            let projectEntry = getProjectEntry(project, target, type);
-                            projectEntry.find('.entry-project').text(projectDisplayName);
-                            projectEntry.find('.entry-target').text(targetDisplayName);
-                            projectEntry.find('.entry-type').text(type);
-                            projectEntry.attr('data-project', project);
-                            projectEntry.attr('data-target', target);
-                            projectEntry.attr('data-type', type);
-                            $('[data-toggle="tooltip"]').tooltip()
-
-                            projectEntry.on('click', function(e) {
-                                $('[data-toggle="tooltip"]').tooltip('hide');
-
-                                if ($isInProject) {
-                                    return;
-                                } else { 
-                                    $isInProject = true;
-                                }
-                                
-                                // First fade out project entries
-                                $projectEntries.fadeOut(400, function() {
-                                    resetState();
-                                    readBuilds(project, target, type, function(buildsRaw) {
-                                        // Then fade in project info
-                                        let $display = getProjectDisplay(project);
-                                        $display.find('.project-title').text(project);
-                                        $display.find('.project-desc').text(buildsRaw.description);
-                                        $display.show();
-                                    
-                                        $projects.append($display);
-
-                                        if ('wiki' in buildsRaw && buildsRaw.wiki.length > 0) {
-                                            let $wiki = createWiki(project, target, type, buildsRaw.wiki);
-                                            $wiki.show();
-                                            $projects.append($wiki);
-                                        }
-
-                                        $projects.fadeIn();
-                                        
-                                        $('.back-button').on('click', function() {
-                                            $isInProject = false;
-                                            resetState();
-                                            loadProjects();
-                                            $projectEntries.fadeIn();
-                                        });
-
-                                        let builds = JSON.parse(buildsRaw.builds).reverse();
-                                        builds.forEach(build => {
-                                            readVersions(project, target, type, build, function(versionsRaw) {
-                                                let buildDisplayName = versionsRaw.display_name;
-                                                let versions = JSON.parse(versionsRaw.versions);
-                                                versions.forEach(version => {
-                                                    readFile(project, target, type, build, version, function(fileData) {
-                                                        if (!fileData.visible) {
-                                                            return;
-                                                        }
-                                                        let fileDisplay = getFileDisplay(fileData.fileName);
-                                                        fileDisplay.find('.file-build').text(buildDisplayName);
-                                                        fileDisplay.find('.file-target').text(targetDisplayName);
-                                                        fileDisplay.find('.file-type').text(type);
-                                                        fileDisplay.find('.file-version').text(fileData.display_name);
-                                                        fileDisplay.find('.file-file').html(`<a href="${fileData.download}" data-toggle="tooltip" title="Download via Jenkins">${fileData.fileName}`);
-                                                        $display.append(fileDisplay);
-                                                        $('[data-toggle="tooltip"]').tooltip()
-                                                        fileDisplay.fadeIn();
-                                                    });
-                                                });
-                                            });
-                                        });
-                                    });
+    readCatalog(function(catalog) {
+        Object.values(catalog.projects).forEach(project => {
+            Object.values(project.targets).forEach(target => {
+                Object.values(target.types).forEach(type => {
+                    let projectEntry = getProjectEntry(project.identifier, target.identifier, type.identifier);
+                    projectEntry.find('.entry-project').text(project.display_name);
+                    projectEntry.find('.entry-target').text(target.display_name);
+                    projectEntry.find('.entry-type').text(type.identifier);
+                    projectEntry.attr('data-project', project.identifier);
+                    projectEntry.attr('data-target', target.identifier);
+                    projectEntry.attr('data-type', type.identifier);
+                    $('[data-toggle="tooltip"]').tooltip()
+
+                    projectEntry.on('click', function(e) {
+                        $('[data-toggle="tooltip"]').tooltip('hide');
+
+                        if ($isInProject) {
+                            return;
+                        } else { 
+                            $isInProject = true;
+                        }
+                        
+                        // First fade out project entries
+                        $projectEntries.fadeOut(400, function() {
+                            resetState();
+                            // Then fade in project info
+                            let $display = getProjectDisplay(project.identifier);
+                            $display.find('.project-title').text(project.identifier);
+                            $display.find('.project-desc').text(type.description);
+                            $display.show();
+                        
+                            $projects.append($display);
+
+                            if ('wiki' in type && type.wiki.length > 0) {
+                                let $wiki = createWiki(project.identifier, target.identifier, type.identifier, type.wiki);
+                                $wiki.show();
+                                $projects.append($wiki);
+                            }
+
+                            $projects.fadeIn();
+                            
+                            $('.back-button').on('click', function() {
+                                $isInProject = false;
+                                resetState();
+                                loadProjects();
+                                $projectEntries.fadeIn();
+                            });
+
+                            // Numeric build ids come first in ascending order, followed by latest
+                            let builds = Object.values(type.builds).reverse();
+                            builds.forEach(build => {
+                                Object.values(build.versions).forEach(version => {
+                                    if (!version.visible) {
+                                        return;
+                                    }
+                                    let fileDisplay = getFileDisplay(version.fileName);
+                                    fileDisplay.find('.file-build').text(build.display_name);
+                                    fileDisplay.find('.file-target').text(target.display_name);
+                                    fileDisplay.find('.file-type').text(type.identifier);
+                                    fileDisplay.find('.file-version').text(version.display_name);
+                                    fileDisplay.find('.file-file').html(`<a href="${version.download}" data-toggle="tooltip" title="Download via Jenkins">${version.fileName}`);
+                                    $display.append(fileDisplay);
+                                    $('[data-toggle="tooltip"]').tooltip()
+                                    fileDisplay.fadeIn();
                                 });
                             });
-                            $projectEntries.append(projectEntry);
-
-                            // console.log('SORTING');
-                            $projectEntries.append($projectEntries.children().sort(function(aa, bb) {
-                                var a = $(aa);
-                                var b = $(bb);
-                                // console.log(`proj > a: ${a.attr('data-project')}, b:  ${b.attr('data-project')}`);
-                                var projA = a.attr('data-project');
-                                var projB = b.attr('data-project');
-                                if (projA == projB) {
-                                    var typeA = a.attr('data-type');
-                                    var typeB = b.attr('data-type');
-                                    // console.log(`type > a ${typeA}, b: ${typeB}`);
-                                    return (typeA < typeB) ? -1 : (typeA > typeB)? 1 : 0;
-                                }
-                                if (projA < projB) {
-                                    return -1;
-                                }
-                                return 1;
-                            }));
-
-                            projectEntry.fadeIn();
                         });
                     });
+                    $projectEntries.append(projectEntry);
+
+                    // console.log('SORTING');
+                    $projectEntries.append($projectEntries.children().sort(function(aa, bb) {
+                        var a = $(aa);
+                        var b = $(bb);
+                        // console.log(`proj > a: ${a.attr('data-project')}, b:  ${b.attr('data-project')}`);
+                        var projA = a.attr('data-project');
+                        var projB = b.attr('data-project');
+                        if (projA == projB) {
+                            var typeA = a.attr('data-type');
+                            var typeB = b.attr('data-type');
+                            // console.log(`type > a ${typeA}, b: ${typeB}`);
+                            return (typeA < typeB) ? -1 : (typeA > typeB)? 1 : 0;
+                        }
+                        if (projA < projB) {
+                            return -1;
+                        }
+                        return 1;
+                    }));
+
+                    projectEntry.fadeIn();
                 });
             });
         });
@@ -161,39 +145,9 @@ function getProjectDisplay(projectName) {
     return object;
 }
 
-function readFile(projectName, targetName, typeName, buildName, versionName, successf) {
-    read(`${projectName}/${targetName}/${typeName}/${buildName}/${versionName}`, function(data) {
-        successf(data);
-    }, true);
-}
-
-function readVersions(projectName, targetName, typeName, buildName, successf) {
-    read(`${projectName}/${targetName}/${typeName}/${buildName}`, function(data) {
-        successf(data);
-    }, false);
-}
-
-function readBuilds(projectName, targetName, typeName, successf) {
-    read(`${projectName}/${targetName}/${typeName}`, function(data) {
-        successf(data);
-    }, true);
-}
-
-function readTypes(projectName, targetName, successf) {
-    read(`${projectName}/${targetName}`, function(data) {
-        successf(data);
-    }, true);
-}
-
-function readTargets(projectName, successf) {
-    read(projectName, function(data) {
-        successf(data);
-    }, true);
-}
-
-function readProjects(successf) {
-    read('', function(data) {
-        successf(data.projects);
+function readCatalog(successf) {
+    read('_all', function(data) {
+        successf(data.tree);
     }, true);
 }
 
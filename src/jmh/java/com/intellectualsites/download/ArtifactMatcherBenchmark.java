@@ -0,0 +1,81 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Benchmarks of artifact classification, as done for every new build while
+ * refreshing. The nested loop is the classification used before the matcher,
+ * kept as a baseline
+ */
+@State(Scope.Benchmark) @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ArtifactMatcherBenchmark {
+
+    @Param({"20", "200", "2000"}) public int artifacts;
+
+    private Project.Type type;
+    private ArtifactMatcher artifactMatcher;
+    private List<String> fileNames;
+
+    @Setup public void setup() throws Exception {
+        // The FAWE development type has the most version schemas
+        this.type = Catalogs.parseProject("FastAsyncWorldEdit").getTypes().stream()
+            .max((a, b) -> Integer.compare(a.getVersionSchemas().size(), b.getVersionSchemas().size())).orElseThrow();
+        this.artifactMatcher = new ArtifactMatcher(this.type.getVersionSchemas().values());
+        this.fileNames = Catalogs.createArtifacts(this.type, this.artifacts);
+    }
+
+    @Benchmark public Map<String, ArtifactMatcher.Match<String>> matcher() {
+        return this.artifactMatcher.match(this.fileNames, Function.identity());
+    }
+
+    @Benchmark public Map<String, String> nestedLoop() {
+        final Map<String, String> matches = new TreeMap<>();
+        for (final String fileName : this.fileNames) {
+            for (final Project.VersionSchema versionSchema : this.type.getVersionSchemas().values()) {
+                if (!matches.containsKey(versionSchema.getIdentifier())
+                    && versionSchema.getArtifactPattern().matcher(fileName).matches()) {
+                    matches.put(versionSchema.getIdentifier(), fileName);
+                }
+            }
+        }
+        return matches;
+    }
+
+}
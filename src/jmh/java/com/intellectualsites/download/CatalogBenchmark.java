@@ -0,0 +1,112 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the request path: path resolution, payload lookup, update
+ * checks and JSON encoding of every node level
+ */
+@State(Scope.Benchmark) @BenchmarkMode(Mode.AverageTime) @OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogBenchmark {
+
+    @Param({"10", "100", "1000"}) public int builds;
+
+    private ProjectListing listing;
+    private PathIndex pathIndex;
+    private Project project;
+    private Project.Target target;
+    private Project.Type type;
+    private Project.Type.Build build;
+    private Project.Type.Version version;
+    private String buildPath;
+    private String versionPath;
+
+    @Setup public void setup() throws Exception {
+        final Map<String, Project> projects = Catalogs.createCatalog(this.builds);
+        this.listing = new ProjectListing(projects, null, null, new VersionIndex(), new ChangeFeed(1),
+            new DownloadStats(null, 0), null);
+        this.pathIndex = new PathIndex(this.listing, projects.values());
+        this.project = projects.get("plotsquared");
+        this.target = this.project.getChildren().iterator().next();
+        this.type = this.target.getChildren().iterator().next();
+        this.build = this.type.getChild("latest");
+        this.version = this.build.getChildren().iterator().next();
+        this.buildPath = this.type.getPath() + "/" + (this.builds / 2);
+        this.versionPath = this.type.getPath() + "/latest/" + this.version.getIdentifier();
+    }
+
+    @Benchmark public JSONObject projectToJSON() {
+        return this.project.toJSON();
+    }
+
+    @Benchmark public JSONObject targetToJSON() {
+        return this.target.toJSON();
+    }
+
+    @Benchmark public JSONObject typeToJSON() {
+        return this.type.toJSON();
+    }
+
+    @Benchmark public JSONObject buildToJSON() {
+        return this.build.toJSON();
+    }
+
+    @Benchmark public JSONObject versionToJSON() {
+        return this.version.toJSON();
+    }
+
+    @Benchmark public Payload resolveBuild() {
+        return this.pathIndex.resolve(this.buildPath).getNode().getPayload();
+    }
+
+    @Benchmark public String resolveDownload() {
+        return ((Project.Type.Version) this.pathIndex.resolve(this.versionPath).getNode()).getDownloadUrl();
+    }
+
+    @Benchmark public Payload checkForUpdate() {
+        final Project.Type type = (Project.Type) this.pathIndex.resolve(this.type.getPath()).getNode();
+        return type.getSnapshot().getUpdate(this.version.getIdentifier()).answer(this.builds / 2);
+    }
+
+    @Benchmark public String writeCatalogTree() {
+        final StringBuilder builder = new StringBuilder();
+        this.listing.writeTree(builder, 5);
+        return builder.toString();
+    }
+
+}
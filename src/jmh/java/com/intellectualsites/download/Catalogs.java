@@ -0,0 +1,135 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Synthetic catalogs for benchmarks, scaled from the schemas in projects/
+ */
+final class Catalogs {
+
+    static final String[] SCHEMAS = new String[] {"FastAsyncWorldEdit", "PlotSquared"};
+
+    private static final Pattern VERSION_GROUP = Pattern.compile("\\(\\?<version>[^)]*\\)");
+
+    private Catalogs() {
+    }
+
+    /**
+     * Read a project schema
+     *
+     * @param name Schema file name, without extension
+     * @return Schema contents
+     */
+    static String readSchema(final String name) throws IOException {
+        try (final InputStream inputStream = Catalogs.class.getResourceAsStream("/" + name + ".json")) {
+            if (inputStream == null) {
+                throw new IOException("Missing schema " + name);
+            }
+            return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Parse a project schema
+     *
+     * @param name Schema file name, without extension
+     * @return Parsed project, without any builds
+     */
+    static Project parseProject(final String name) throws IOException, ParseException {
+        return new Project(name, (JSONObject) new JSONParser().parse(readSchema(name)));
+    }
+
+    /**
+     * Create a catalog of all schemas, where every type has the given number
+     * of builds and every build has an artifact for each version
+     *
+     * @param builds Builds per type
+     * @return Projects by identifier
+     */
+    static Map<String, Project> createCatalog(final int builds) throws IOException, ParseException {
+        DownloadServiceConfig.Retention.maxBuilds = 0; // Keep every synthetic build
+        final Map<String, Project> projects = new TreeMap<>();
+        for (final String name : SCHEMAS) {
+            final Project project = parseProject(name);
+            for (final Project.Type type : project.getTypes()) {
+                final Map<Integer, Map<String, Project.Type.Version>> resolved = new TreeMap<>();
+                for (int build = 1; build <= builds; build++) {
+                    final Map<String, Project.Type.Version> versions = new TreeMap<>();
+                    for (final Project.VersionSchema versionSchema : type.getVersionSchemas().values()) {
+                        final String fileName = createArtifactName(versionSchema, build);
+                        versions.put(versionSchema.getIdentifier(), type.createVersion(versionSchema.getIdentifier(),
+                            fileName, project.getJenkinsBase() + "job/" + type.getJobName() + "/" + build
+                                + "/artifact/" + fileName));
+                    }
+                    resolved.put(build, versions);
+                }
+                type.restore(builds, resolved, Collections.emptyMap(), 0);
+            }
+            projects.put(project.getIdentifier(), project);
+        }
+        return projects;
+    }
+
+    /**
+     * Create the artifact list of a single build of a type, padded with
+     * artifacts that no schema matches until it reaches the given size
+     *
+     * @param type      Type to create artifacts for
+     * @param artifacts Number of artifacts
+     * @return Artifact file names, in a fixed pseudo random order
+     */
+    static List<String> createArtifacts(final Project.Type type, final int artifacts) {
+        final List<String> fileNames = new ArrayList<>();
+        for (final Project.VersionSchema versionSchema : type.getVersionSchemas().values()) {
+            fileNames.add(createArtifactName(versionSchema, 1000));
+        }
+        for (int i = 0; fileNames.size() < artifacts; i++) {
+            fileNames.add(type.getJobName() + "-module" + i + "-1.13.2-1000-sources.jar");
+        }
+        Collections.shuffle(fileNames, new Random(fileNames.size()));
+        return fileNames.subList(0, artifacts);
+    }
+
+    private static String createArtifactName(final Project.VersionSchema versionSchema, final int build) {
+        return VERSION_GROUP.matcher(versionSchema.getArtifactPattern().pattern()).replaceFirst("1.13.2-" + build)
+            .replace("^", "").replace("$", "");
+    }
+
+}
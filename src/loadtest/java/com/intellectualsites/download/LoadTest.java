@@ -0,0 +1,270 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test. Starts a stub Jenkins, generates project schemas that
+ * point at it, boots the service and drives concurrent requests against the
+ * API. Run it through ./gradlew loadTest, which runs it in build/loadtest.
+ * <p>
+ * Options are given as --name=value: projects, jobs (types per project),
+ * builds, artifacts (per build), artifactSize (bytes), latency (stub Jenkins
+ * latency in ms), failureRate, concurrency, duration (seconds) and service
+ * (base URL the service listens on)
+ */
+public final class LoadTest {
+
+    private static final int VERSIONS = 8; // artifacts beyond this match no version schema
+
+    private LoadTest() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        final int projects = Integer.parseInt(options.getOrDefault("projects", "4"));
+        final int jobs = Integer.parseInt(options.getOrDefault("jobs", "5"));
+        final int builds = Integer.parseInt(options.getOrDefault("builds", "50"));
+        final int artifacts = Integer.parseInt(options.getOrDefault("artifacts", "12"));
+        final int artifactSize = Integer.parseInt(options.getOrDefault("artifactSize", "65536"));
+        final long latency = Long.parseLong(options.getOrDefault("latency", "50"));
+        final double failureRate = Double.parseDouble(options.getOrDefault("failureRate", "0"));
+        final int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "32"));
+        final int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        final String service = options.getOrDefault("service", "http://localhost:8080/");
+
+        final String[] artifactNames = new String[artifacts];
+        for (int i = 0; i < artifacts; i++) {
+            artifactNames[i] = "module" + i + "-1.0.{build}.jar";
+        }
+        final StubJenkins stubJenkins = new StubJenkins(builds, artifactNames, artifactSize, latency, failureRate);
+        stubJenkins.start();
+        System.out.printf("Stub Jenkins listening at %s\n", stubJenkins.getBase());
+
+        final File projectFolder = new File("projects");
+        writeSchemas(projectFolder, stubJenkins.getBase(), projects, jobs, Math.min(artifacts, VERSIONS));
+
+        //
+        // Boot the service, and wait until every type has been loaded
+        //
+        final long bootStart = System.nanoTime();
+        new DownloadService(projectFolder);
+        while (request(service + "download/api/_health", null) != 200) {
+            if (System.nanoTime() - bootStart > TimeUnit.MINUTES.toNanos(10)) {
+                throw new IllegalStateException("The service did not become ready within 10 minutes");
+            }
+            Thread.sleep(100);
+        }
+        final long loadTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - bootStart);
+
+        //
+        // Request a mix of listings, versions and downloads from every connection
+        //
+        final List<String> urls = new ArrayList<>();
+        urls.add(service + "download/api/");
+        for (int project = 0; project < projects; project++) {
+            urls.add(service + "download/api/loadtest" + project);
+            for (int job = 0; job < jobs; job++) {
+                final String type = service + "download/api/loadtest" + project + "/main/type" + job;
+                urls.add(type);
+                urls.add(type + "/latest");
+                for (int version = 0; version < Math.min(artifacts, VERSIONS); version++) {
+                    urls.add(type + "/latest/module" + version);
+                    // The newest build is only listed as latest
+                    final int build = Math.max(1, builds - version);
+                    urls.add(type + "/" + (build == builds ? "latest" : Integer.toString(build)) + "/module" + version
+                        + "/download");
+                }
+            }
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final List<Future<long[]>> results = new ArrayList<>();
+        final long[] errors = new long[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            final int connection = i;
+            results.add(executor.submit(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < deadline) {
+                    final String url = urls.get(ThreadLocalRandom.current().nextInt(urls.size()));
+                    final long start = System.nanoTime();
+                    final int status = request(url, null);
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                    if (status == -1 || status >= 400) {
+                        errors[connection]++;
+                    }
+                }
+                return Arrays.copyOf(latencies, count);
+            }));
+        }
+        long[] latencies = new long[0];
+        for (final Future<long[]> result : results) {
+            final long[] connectionLatencies = result.get();
+            final int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + connectionLatencies.length);
+            System.arraycopy(connectionLatencies, 0, latencies, offset, connectionLatencies.length);
+        }
+        executor.shutdown();
+        Arrays.sort(latencies);
+
+        //
+        // Report
+        //
+        final StringBuilder metrics = new StringBuilder();
+        request(service + "download/api/_metrics", metrics);
+        double refreshSeconds = 0;
+        long refreshes = 0;
+        for (final String line : metrics.toString().split("\n")) {
+            if (line.startsWith("download_refresh_duration_seconds_sum{")) {
+                refreshSeconds += Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+            } else if (line.startsWith("download_refresh_duration_seconds_count{")) {
+                refreshes += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        System.out.printf("Refresh: %d types loaded in %dms, %.1fms per refresh over %d refreshes\n",
+            projects * jobs, loadTime, refreshes == 0 ? 0 : refreshSeconds * 1000 / refreshes, refreshes);
+        System.out.printf("Stub Jenkins: %d requests, %d injected failures\n", stubJenkins.getRequests(),
+            stubJenkins.getFailures());
+        System.out.printf("Load: %d connections for %ds, %d requests, %d errors, %.1f requests/s\n", concurrency,
+            duration, latencies.length, Arrays.stream(errors).sum(), latencies.length / (double) duration);
+        if (latencies.length > 0) {
+            System.out.printf("Latency: p50 %.2fms, p99 %.2fms, max %.2fms\n", percentile(latencies, 0.5),
+                percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6);
+        }
+        stubJenkins.stop();
+        System.exit(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeSchemas(final File projectFolder, final String jenkinsBase, final int projects,
+        final int jobs, final int versions) throws IOException {
+        if (!projectFolder.isDirectory() && !projectFolder.mkdirs()) {
+            throw new IOException("Failed to create " + projectFolder);
+        }
+        final File[] previous = projectFolder.listFiles();
+        if (previous != null) {
+            for (final File file : previous) {
+                Files.delete(file.toPath());
+            }
+        }
+        for (int project = 0; project < projects; project++) {
+            final JSONArray types = new JSONArray();
+            for (int job = 0; job < jobs; job++) {
+                final JSONArray versionSchemas = new JSONArray();
+                for (int version = 0; version < versions; version++) {
+                    final JSONObject versionSchema = new JSONObject();
+                    versionSchema.put("identifier", "module" + version);
+                    versionSchema.put("artifact_pattern", "^module" + version + "-(?<version>[0-9.]+).jar$");
+                    versionSchemas.add(versionSchema);
+                }
+                final JSONObject type = new JSONObject();
+                type.put("identifier", "type" + job);
+                type.put("job_name", "LoadTest-" + project + "-" + job);
+                type.put("description", "Load test type " + job);
+                type.put("versions", versionSchemas);
+                types.add(type);
+            }
+            final JSONObject target = new JSONObject();
+            target.put("identifier", "main");
+            target.put("types", types);
+            final JSONArray targets = new JSONArray();
+            targets.add(target);
+            final JSONObject schema = new JSONObject();
+            schema.put("jenkins_base", jenkinsBase);
+            schema.put("targets", targets);
+            Files.write(new File(projectFolder, "loadtest" + project + ".json").toPath(),
+                schema.toJSONString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Make a GET request without following redirects, reading the whole body
+     *
+     * @param url  URL to request
+     * @param body Builder that receives the body, or null to discard it
+     * @return Response status, or -1 if the request failed
+     */
+    private static int request(final String url, final StringBuilder body) {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(30000);
+            final int status = connection.getResponseCode();
+            try (final InputStream inputStream = status >= 400 ? connection.getErrorStream() :
+                connection.getInputStream()) {
+                if (inputStream != null) {
+                    if (body == null) {
+                        inputStream.readAllBytes();
+                    } else {
+                        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream,
+                            StandardCharsets.UTF_8))) {
+                            reader.lines().forEach(line -> body.append(line).append('\n'));
+                        }
+                    }
+                }
+            }
+            return status;
+        } catch (final IOException e) {
+            return -1;
+        }
+    }
+
+    private static double percentile(final long[] sorted, final double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))] / 1e6;
+    }
+
+}
@@ -0,0 +1,221 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for a Jenkins instance. Every job has the same number of
+ * completed builds, and every build the same artifacts. Responses follow the
+ * Jenkins JSON API: /job/name/api/json, /job/name/number/api/json and
+ * /job/name/number/artifact/path
+ */
+final class StubJenkins {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final int builds;
+    private final String[] artifacts;
+    private final long latency;
+    private final double failureRate;
+    private final byte[] artifactBytes;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param builds        Completed builds per job
+     * @param artifacts     Artifact file names of every build, where {build} is replaced by the build number
+     * @param artifactSize  Size of every artifact, in bytes
+     * @param latency       Milliseconds every response is delayed by, on average
+     * @param failureRate   Fraction of requests that fail with 500 Internal Server Error
+     */
+    StubJenkins(final int builds, final String[] artifacts, final int artifactSize, final long latency,
+        final double failureRate) throws IOException {
+        this.builds = builds;
+        this.artifacts = artifacts;
+        this.latency = latency;
+        this.failureRate = failureRate;
+        this.artifactBytes = new byte[artifactSize];
+        ThreadLocalRandom.current().nextBytes(this.artifactBytes);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "stub-jenkins");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/job/", this::handle);
+    }
+
+    void start() {
+        this.server.start();
+    }
+
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Get the jenkins_base that projects should use
+     *
+     * @return Base URL, ending with a slash
+     */
+    String getBase() {
+        return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort() + "/";
+    }
+
+    long getRequests() {
+        return this.requests.sum();
+    }
+
+    long getFailures() {
+        return this.failures.sum();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        this.requests.increment();
+        try {
+            if (this.latency > 0) {
+                // Uniformly spread around the configured latency
+                Thread.sleep(ThreadLocalRandom.current().nextLong(this.latency * 2 + 1));
+            }
+            if (ThreadLocalRandom.current().nextDouble() < this.failureRate) {
+                this.failures.increment();
+                this.send(exchange, 500, "text/plain", "Injected failure".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            // /job/name/api/json, /job/name/number/api/json or /job/name/number/artifact/...
+            final String[] segments = exchange.getRequestURI().getPath().substring("/job/".length()).split("/", 4);
+            final String job = segments[0];
+            if (segments.length >= 3 && "api".equals(segments[1])) {
+                this.sendJSON(exchange, this.createJobInfo(job));
+                return;
+            }
+            final int build = segments.length >= 2 ? this.parseBuild(segments[1]) : -1;
+            if (build == -1) {
+                this.send(exchange, 404, "text/plain", new byte[0]);
+            } else if (segments.length >= 4 && "api".equals(segments[2])) {
+                this.sendJSON(exchange, this.createBuildInfo(job, build));
+            } else if (segments.length >= 4 && "artifact".equals(segments[2])) {
+                this.send(exchange, 200, "application/java-archive", this.artifactBytes);
+            } else {
+                this.send(exchange, 404, "text/plain", new byte[0]);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private int parseBuild(final String segment) {
+        try {
+            final int build = Integer.parseInt(segment);
+            return build >= 1 && build <= this.builds ? build : -1;
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @SuppressWarnings("unchecked") private JSONObject createJobInfo(final String job) {
+        final JSONArray builds = new JSONArray();
+        for (int build = this.builds; build >= 1; build--) {
+            builds.add(this.createBuildDescription(job, build));
+        }
+        final JSONObject jobInfo = new JSONObject();
+        jobInfo.put("_class", "hudson.model.FreeStyleProject");
+        jobInfo.put("name", job);
+        jobInfo.put("displayName", job);
+        jobInfo.put("url", this.getBase() + "job/" + job + "/");
+        jobInfo.put("buildable", true);
+        jobInfo.put("builds", builds);
+        jobInfo.put("firstBuild", this.createBuildDescription(job, 1));
+        jobInfo.put("lastBuild", this.createBuildDescription(job, this.builds));
+        jobInfo.put("lastCompletedBuild", this.createBuildDescription(job, this.builds));
+        jobInfo.put("lastStableBuild", this.createBuildDescription(job, this.builds));
+        jobInfo.put("lastSuccessfulBuild", this.createBuildDescription(job, this.builds));
+        jobInfo.put("nextBuildNumber", this.builds + 1);
+        return jobInfo;
+    }
+
+    @SuppressWarnings("unchecked") private JSONObject createBuildDescription(final String job, final int build) {
+        final JSONObject buildDescription = new JSONObject();
+        buildDescription.put("_class", "hudson.model.FreeStyleBuild");
+        buildDescription.put("number", build);
+        buildDescription.put("url", this.getBase() + "job/" + job + "/" + build + "/");
+        return buildDescription;
+    }
+
+    @SuppressWarnings("unchecked") private JSONObject createBuildInfo(final String job, final int build) {
+        final JSONArray artifacts = new JSONArray();
+        for (final String artifact : this.artifacts) {
+            final String fileName = artifact.replace("{build}", Integer.toString(build));
+            final JSONObject artifactDescription = new JSONObject();
+            artifactDescription.put("displayPath", fileName);
+            artifactDescription.put("fileName", fileName);
+            artifactDescription.put("relativePath", "target/" + fileName);
+            artifacts.add(artifactDescription);
+        }
+        final JSONObject buildInfo = this.createBuildDescription(job, build);
+        buildInfo.put("artifacts", artifacts);
+        buildInfo.put("building", false);
+        buildInfo.put("displayName", "#" + build);
+        buildInfo.put("fullDisplayName", job + " #" + build);
+        buildInfo.put("id", Integer.toString(build));
+        buildInfo.put("result", "SUCCESS");
+        buildInfo.put("timestamp", System.currentTimeMillis() - (this.builds - build) * 3_600_000L);
+        return buildInfo;
+    }
+
+    private void sendJSON(final HttpExchange exchange, final JSONObject object) throws IOException {
+        this.send(exchange, 200, "application/json;charset=utf-8", object.toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(final HttpExchange exchange, final int status, final String contentType, final byte[] body)
+        throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            try (final OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,208 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies artifact file names against all version schemas of a type in a
+ * single pass over the artifacts. Every schema is indexed by the literal
+ * prefix of its pattern in a character trie, so each file name only has to be
+ * matched against the patterns whose literal prefix and suffix it carries
+ */
+final class ArtifactMatcher {
+
+    private static final String META_CHARACTERS = "\\.[]{}()*+?^$|";
+    private static final Pattern GROUP_NAME_PATTERN = Pattern.compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)>");
+
+    private final TrieNode root = new TrieNode();
+    private final int schemaCount;
+
+    ArtifactMatcher(final Collection<Project.VersionSchema> versionSchemas) {
+        int order = 0;
+        for (final Project.VersionSchema versionSchema : versionSchemas) {
+            final CompiledSchema compiledSchema = new CompiledSchema(order++, versionSchema);
+            TrieNode node = this.root;
+            for (final char character : compiledSchema.prefix.toCharArray()) {
+                node = node.children.computeIfAbsent(character, key -> new TrieNode());
+            }
+            node.schemas.add(compiledSchema);
+        }
+        this.schemaCount = order;
+    }
+
+    /**
+     * Find the first matching artifact of every schema. Artifacts are
+     * visited in iteration order, and each schema keeps its first match
+     *
+     * @param artifacts Artifacts to classify
+     * @param fileName  Function extracting the file name of an artifact
+     * @param <T>       Artifact type
+     * @return Matches by version schema identifier, sorted by identifier
+     */
+    <T> Map<String, Match<T>> match(final Iterable<T> artifacts, final Function<T, String> fileName) {
+        final Map<String, Match<T>> matches = new TreeMap<>();
+        final boolean[] matched = new boolean[this.schemaCount];
+        int remaining = this.schemaCount;
+        for (final T artifact : artifacts) {
+            if (remaining == 0) {
+                break;
+            }
+            final String name = fileName.apply(artifact);
+            TrieNode node = this.root;
+            int depth = 0;
+            while (node != null) {
+                for (final CompiledSchema compiledSchema : node.schemas) {
+                    if (matched[compiledSchema.order] || !name.endsWith(compiledSchema.suffix)) {
+                        continue;
+                    }
+                    final Matcher matcher = compiledSchema.versionSchema.getArtifactPattern().matcher(name);
+                    if (!matcher.matches()) {
+                        continue;
+                    }
+                    final Map<String, String> captures;
+                    if (compiledSchema.groupNames.isEmpty()) {
+                        captures = Collections.emptyMap();
+                    } else {
+                        captures = new HashMap<>();
+                        for (final String groupName : compiledSchema.groupNames) {
+                            final String capture = matcher.group(groupName);
+                            if (capture != null) {
+                                captures.put(groupName, capture);
+                            }
+                        }
+                    }
+                    matched[compiledSchema.order] = true;
+                    remaining--;
+                    matches.put(compiledSchema.versionSchema.getIdentifier(),
+                        new Match<>(compiledSchema.versionSchema, artifact, captures));
+                }
+                node = depth < name.length() ? node.children.get(name.charAt(depth++)) : null;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Extract the literal text every match of the pattern must start with
+     */
+    static String getLiteralPrefix(final String pattern) {
+        if (!isPrefilterSafe(pattern)) {
+            return "";
+        }
+        final StringBuilder prefix = new StringBuilder();
+        int index = pattern.startsWith("^") ? 1 : 0;
+        while (index < pattern.length()) {
+            char character = pattern.charAt(index);
+            int next = index + 1;
+            if (character == '\\') {
+                if (next >= pattern.length() || Character.isLetterOrDigit(pattern.charAt(next))) {
+                    break; // Character class or back reference
+                }
+                character = pattern.charAt(next++);
+            } else if (META_CHARACTERS.indexOf(character) != -1) {
+                break;
+            }
+            if (next < pattern.length() && "?*{".indexOf(pattern.charAt(next)) != -1) {
+                break; // The character is optional
+            }
+            prefix.append(character);
+            index = next;
+        }
+        return prefix.toString();
+    }
+
+    /**
+     * Extract the literal text every match of the pattern must end with
+     */
+    static String getLiteralSuffix(final String pattern) {
+        if (!isPrefilterSafe(pattern) || !pattern.endsWith("$") || pattern.endsWith("\\$")) {
+            return "";
+        }
+        final StringBuilder suffix = new StringBuilder();
+        for (int index = pattern.length() - 2; index >= 0; index--) {
+            final char character = pattern.charAt(index);
+            if (META_CHARACTERS.indexOf(character) != -1 || (index > 0 && pattern.charAt(index - 1) == '\\')) {
+                break;
+            }
+            suffix.append(character);
+        }
+        return suffix.reverse().toString();
+    }
+
+    private static boolean isPrefilterSafe(final String pattern) {
+        // Alternations and inline flags may change what the literal parts match
+        return pattern.indexOf('|') == -1 && !pattern.matches(".*\\(\\?[a-zA-Z-]+[:)].*");
+    }
+
+    /**
+     * An artifact that matched a version schema
+     *
+     * @param <T> Artifact type
+     */
+    @Getter @RequiredArgsConstructor static final class Match<T> {
+        private final Project.VersionSchema versionSchema;
+        private final T artifact;
+        private final Map<String, String> captures;
+    }
+
+    private static final class CompiledSchema {
+        private final int order;
+        private final Project.VersionSchema versionSchema;
+        private final String prefix;
+        private final String suffix;
+        private final List<String> groupNames = new ArrayList<>();
+
+        private CompiledSchema(final int order, final Project.VersionSchema versionSchema) {
+            this.order = order;
+            this.versionSchema = versionSchema;
+            final String pattern = versionSchema.getArtifactPattern().pattern();
+            this.prefix = getLiteralPrefix(pattern);
+            this.suffix = getLiteralSuffix(pattern);
+            final Matcher matcher = GROUP_NAME_PATTERN.matcher(pattern);
+            while (matcher.find()) {
+                this.groupNames.add(matcher.group(1));
+            }
+        }
+    }
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private final List<CompiledSchema> schemas = new ArrayList<>();
+    }
+
+}
@@ -0,0 +1,381 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import xyz.kvantum.server.api.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Keeps local copies of artifacts in a content addressed store, so that
+ * downloads don't have to be redirected to Jenkins. Every artifact is fetched
+ * once, and the least recently downloaded artifacts are evicted when the store
+ * grows beyond its size limit. The contents of recently downloaded small
+ * artifacts are kept in memory and shared by all requests for them. Looking
+ * up an artifact takes no lock, and eviction only holds one while it picks
+ * its victims, so downloads never wait for file or database operations
+ */
+final class ArtifactMirror {
+
+    private static final Pattern HASH_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path folder;
+    private final long maxSize;
+    private final long maxCacheSize;
+    private final Map<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<Integer>> mirroredBuilds = new HashMap<>();
+    private final CatalogStore catalogStore;
+    private final Map<String, Artifact> artifacts = new ConcurrentHashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor;
+    private long size;
+    private long cacheSize;
+
+    /**
+     * Create a new mirror
+     *
+     * @param folder       Folder the artifacts are stored in
+     * @param maxSize      Maximum total size of all stored artifacts, in bytes
+     * @param maxCacheSize Maximum total size of the artifacts kept in memory, in bytes
+     * @param catalogStore Store used to remember which artifacts are mirrored, may be null
+     */
+    ArtifactMirror(final Path folder, final long maxSize, final long maxCacheSize, final CatalogStore catalogStore)
+        throws IOException {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        this.maxCacheSize = maxCacheSize;
+        this.catalogStore = catalogStore;
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "artifact-mirror");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Files.createDirectories(folder);
+        if (catalogStore != null) {
+            try {
+                for (final Artifact artifact : catalogStore.loadArtifacts()) {
+                    if (Files.isRegularFile(this.getPath(artifact.getHash()))) {
+                        this.add(artifact);
+                    }
+                }
+            } catch (final SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        // Remove artifact files that no longer belong to any artifact, and
+        // interrupted fetches. Anything else in the folder is left alone
+        final Set<String> hashes = new HashSet<>(this.references.keySet());
+        try (final Stream<Path> files = Files.walk(folder, 2)) {
+            files.filter(Files::isRegularFile).filter(path -> this.isOrphan(path, hashes))
+                .forEach(path -> {
+                    try {
+                        Files.delete(path);
+                    } catch (final IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+        }
+        this.evict();
+    }
+
+    private boolean isOrphan(final Path path, final Set<String> hashes) {
+        final String name = path.getFileName().toString();
+        final Path parent = path.getParent();
+        if (this.folder.equals(parent)) {
+            return name.startsWith("fetch") && name.endsWith(".tmp");
+        }
+        return HASH_PATTERN.matcher(name).matches() && parent != null && this.folder.equals(parent.getParent())
+            && parent.getFileName().toString().equals(name.substring(0, 2)) && !hashes.contains(name);
+    }
+
+    /**
+     * Queue the artifacts of the builds of a type that haven't been seen
+     * before. Artifacts of builds that were already seen are not fetched
+     * again, even if they have been evicted since
+     *
+     * @param type Type to mirror
+     */
+    void mirror(final Project.Type type) {
+        final Map<Integer, Map<String, Project.Type.Version>> resolved = type.getSnapshot().getResolved();
+        final Set<Integer> previous;
+        synchronized (this.mirroredBuilds) {
+            previous = this.mirroredBuilds.put(type.getPath(), new HashSet<>(resolved.keySet()));
+        }
+        for (final Map.Entry<Integer, Map<String, Project.Type.Version>> build : resolved.entrySet()) {
+            if (previous != null && previous.contains(build.getKey())) {
+                continue;
+            }
+            for (final Project.Type.Version version : build.getValue().values()) {
+                final String url = version.getDownloadUrl();
+                if (!this.artifacts.containsKey(url) && this.pending.add(url)) {
+                    this.executor.execute(() -> {
+                        try {
+                            this.fetch(url);
+                        } catch (final IOException | SQLException e) {
+                            Logger.warn("Failed to mirror {0}: {1}", url, e.getMessage());
+                        } finally {
+                            this.pending.remove(url);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a mirrored artifact. This marks the artifact as recently used
+     *
+     * @param url Jenkins download URL
+     * @return Mirrored artifact, or null if it isn't mirrored
+     */
+    Artifact get(final String url) {
+        final Artifact artifact = this.artifacts.get(url);
+        if (artifact != null) {
+            artifact.lastUsed = System.nanoTime();
+        }
+        return artifact;
+    }
+
+    /**
+     * Read part of a mirrored artifact. Whole reads of artifacts no larger
+     * than a sixteenth of the memory cache are cached, so a few large
+     * artifacts can't flush it. Cached contents are shared and must not be
+     * modified. Other reads only read the requested bytes from disk
+     *
+     * @param artifact Artifact to read
+     * @param offset   Offset of the first byte
+     * @param length   Number of bytes to read
+     * @return Read bytes
+     */
+    byte[] read(final Artifact artifact, final long offset, final int length) throws IOException {
+        if (artifact.getSize() > this.maxCacheSize / 16) {
+            return this.readFile(artifact, offset, length);
+        }
+        byte[] contents;
+        synchronized (this.cache) {
+            contents = this.cache.get(artifact.getHash());
+        }
+        if (contents == null) {
+            if (offset != 0L || length != artifact.getSize()) {
+                return this.readFile(artifact, offset, length);
+            }
+            contents = this.readFile(artifact, 0L, length);
+            synchronized (this.cache) {
+                if (this.cache.putIfAbsent(artifact.getHash(), contents) == null) {
+                    this.cacheSize += contents.length;
+                    final Iterator<byte[]> iterator = this.cache.values().iterator();
+                    while (this.cacheSize > this.maxCacheSize && iterator.hasNext()) {
+                        this.cacheSize -= iterator.next().length;
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        if (offset == 0L && length == contents.length) {
+            return contents;
+        }
+        return Arrays.copyOfRange(contents, (int) offset, (int) offset + length);
+    }
+
+    private byte[] readFile(final Artifact artifact, final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (final FileChannel channel = FileChannel.open(this.getPath(artifact.getHash()), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + artifact.getHash());
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    void close() {
+        this.executor.shutdownNow();
+    }
+
+    private void fetch(final String url) throws IOException, SQLException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final Path temporary = Files.createTempFile(this.folder, "fetch", ".tmp");
+        try {
+            long size = 0;
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            final int timeout = (int) TimeUnit.SECONDS.toMillis(DownloadServiceConfig.Refresh.timeout);
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            try (final InputStream inputStream = connection.getInputStream();
+                 final OutputStream outputStream = Files.newOutputStream(temporary)) {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                    outputStream.write(buffer, 0, read);
+                    size += read;
+                }
+            }
+            final StringBuilder hash = new StringBuilder();
+            for (final byte b : digest.digest()) {
+                hash.append(String.format("%02x", b));
+            }
+            final Path path = this.getPath(hash.toString());
+            Files.createDirectories(path.getParent());
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            final Artifact artifact = new Artifact(url, hash.toString(), size);
+            if (this.catalogStore != null) {
+                this.catalogStore.saveArtifact(artifact);
+            }
+            this.add(artifact);
+            this.evict();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Register a stored artifact. Artifacts with the same contents share
+     * their file, which only counts towards the size limit once
+     */
+    private synchronized void add(final Artifact artifact) {
+        artifact.lastUsed = System.nanoTime();
+        final Artifact previous = this.artifacts.put(artifact.getUrl(), artifact);
+        if (previous != null) {
+            if (previous.getHash().equals(artifact.getHash())) {
+                return;
+            }
+            // The previous file is removed by the sweep on the next start
+            if (this.references.merge(previous.getHash(), -1, Integer::sum) == 0) {
+                this.references.remove(previous.getHash());
+                this.size -= previous.getSize();
+            }
+        }
+        if (this.references.merge(artifact.getHash(), 1, Integer::sum) == 1) {
+            this.size += artifact.getSize();
+        }
+    }
+
+    /**
+     * Evict the least recently downloaded artifacts until the store fits its
+     * size limit. Only picking the victims holds the lock, their rows and
+     * files are deleted afterwards. Fetches and evictions both run on the
+     * mirror thread, so a file can't be fetched again while it is deleted
+     */
+    private void evict() {
+        final List<Artifact> evicted = new ArrayList<>();
+        final List<String> unreferenced = new ArrayList<>();
+        synchronized (this) {
+            if (this.size <= this.maxSize) {
+                return;
+            }
+            final List<Artifact> candidates = new ArrayList<>(this.artifacts.values());
+            candidates.sort(Comparator.comparingLong(artifact -> artifact.lastUsed));
+            final Iterator<Artifact> iterator = candidates.iterator();
+            while (this.size > this.maxSize && iterator.hasNext()) {
+                final Artifact artifact = iterator.next();
+                if (!this.artifacts.remove(artifact.getUrl(), artifact)) {
+                    continue;
+                }
+                evicted.add(artifact);
+                if (this.references.merge(artifact.getHash(), -1, Integer::sum) == 0) {
+                    this.references.remove(artifact.getHash());
+                    this.size -= artifact.getSize();
+                    unreferenced.add(artifact.getHash());
+                }
+            }
+        }
+        for (final Artifact artifact : evicted) {
+            try {
+                if (this.catalogStore != null) {
+                    this.catalogStore.deleteArtifact(artifact.getUrl());
+                }
+            } catch (final SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        for (final String hash : unreferenced) {
+            synchronized (this.cache) {
+                final byte[] contents = this.cache.remove(hash);
+                if (contents != null) {
+                    this.cacheSize -= contents.length;
+                }
+            }
+            try {
+                Files.deleteIfExists(this.getPath(hash));
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private Path getPath(final String hash) {
+        return this.folder.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    /**
+     * An artifact stored in the mirror
+     */
+    @Getter @RequiredArgsConstructor static final class Artifact {
+        private final String url;
+        private final String hash;
+        private final long size;
+        private volatile long lastUsed;
+    }
+
+}
@@ -0,0 +1,316 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persists the resolved builds of every type in a local SQLite database, so
+ * that the catalog can be served before Jenkins has been contacted. Mirrored
+ * artifacts and download counts are kept in the same database
+ */
+final class CatalogStore {
+
+    private final Connection connection;
+
+    CatalogStore(final String file) throws SQLException {
+        this.connection = DriverManager.getConnection("jdbc:sqlite:" + file);
+        try (final Statement statement = this.connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `types` (`type` TEXT PRIMARY KEY, `latest` INTEGER NOT NULL, "
+                + "`evicted` INTEGER NOT NULL DEFAULT 0)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `builds` (`type` TEXT NOT NULL, `build` INTEGER NOT NULL, "
+                + "`discovered` INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (`type`, `build`))");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `versions` (`type` TEXT NOT NULL, `build` INTEGER NOT NULL, "
+                + "`identifier` TEXT NOT NULL, `file_name` TEXT NOT NULL, `url` TEXT NOT NULL, "
+                + "PRIMARY KEY (`type`, `build`, `identifier`))");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `artifacts` (`url` TEXT PRIMARY KEY, `hash` TEXT NOT NULL, "
+                + "`size` INTEGER NOT NULL)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS `downloads` (`type` TEXT NOT NULL, `build` INTEGER NOT NULL, "
+                + "`version` TEXT NOT NULL, `day` INTEGER NOT NULL, `count` INTEGER NOT NULL, "
+                + "PRIMARY KEY (`type`, `build`, `version`, `day`))");
+            // Stores created before build retention
+            this.addColumn(statement, "types", "evicted", "INTEGER NOT NULL DEFAULT 0");
+            this.addColumn(statement, "builds", "discovered", "INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    private void addColumn(final Statement statement, final String table, final String column, final String definition)
+        throws SQLException {
+        try (final ResultSet resultSet = statement.executeQuery("PRAGMA table_info(`" + table + "`)")) {
+            while (resultSet.next()) {
+                if (column.equals(resultSet.getString("name"))) {
+                    return;
+                }
+            }
+        }
+        statement.executeUpdate("ALTER TABLE `" + table + "` ADD COLUMN `" + column + "` " + definition);
+    }
+
+    /**
+     * Restore the last stored builds of a type, if there are any
+     *
+     * @param type Type to restore
+     * @return True if builds were restored
+     */
+    synchronized boolean load(final Project.Type type) throws SQLException {
+        final int latest;
+        final int evicted;
+        try (final PreparedStatement statement = this.connection.prepareStatement(
+            "SELECT `latest`, `evicted` FROM `types` WHERE `type` = ?")) {
+            statement.setString(1, type.getPath());
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return false;
+                }
+                latest = resultSet.getInt("latest");
+                evicted = resultSet.getInt("evicted");
+            }
+        }
+        final Map<Integer, Map<String, Project.Type.Version>> resolved = new TreeMap<>();
+        final Map<Integer, Long> discovered = new HashMap<>();
+        final long now = System.currentTimeMillis();
+        try (final PreparedStatement statement = this.connection.prepareStatement(
+            "SELECT `build`, `discovered` FROM `builds` WHERE `type` = ?")) {
+            statement.setString(1, type.getPath());
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    resolved.put(resultSet.getInt("build"), new HashMap<>());
+                    // Builds stored before retention are treated as found now
+                    final long time = resultSet.getLong("discovered");
+                    discovered.put(resultSet.getInt("build"), time == 0L ? now : time);
+                }
+            }
+        }
+        try (final PreparedStatement statement = this.connection.prepareStatement(
+            "SELECT `build`, `identifier`, `file_name`, `url` FROM `versions` WHERE `type` = ?")) {
+            statement.setString(1, type.getPath());
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    final Map<String, Project.Type.Version> versions = resolved.get(resultSet.getInt("build"));
+                    final Project.Type.Version version = type.createVersion(resultSet.getString("identifier"),
+                        resultSet.getString("file_name"), resultSet.getString("url"));
+                    if (versions != null && version != null) {
+                        versions.put(version.getIdentifier(), version);
+                    }
+                }
+            }
+        }
+        type.restore(latest, resolved, discovered, evicted);
+        return true;
+    }
+
+    /**
+     * Store the currently published builds of a type. Resolved builds never
+     * change, so only builds that aren't stored yet are written. Evicted
+     * builds are deleted
+     *
+     * @param type Type to store
+     */
+    synchronized void save(final Project.Type type) throws SQLException {
+        final Project.Type.Snapshot snapshot = type.getSnapshot();
+        this.connection.setAutoCommit(false);
+        try (final PreparedStatement typeStatement = this.connection.prepareStatement(
+                "INSERT OR REPLACE INTO `types` (`type`, `latest`, `evicted`) VALUES (?, ?, ?)");
+             final PreparedStatement buildStatement = this.connection.prepareStatement(
+                 "INSERT OR IGNORE INTO `builds` (`type`, `build`, `discovered`) VALUES (?, ?, ?)");
+             final PreparedStatement evictBuildStatement = this.connection.prepareStatement(
+                 "DELETE FROM `builds` WHERE `type` = ? AND `build` <= ? AND `build` != ?");
+             final PreparedStatement evictVersionStatement = this.connection.prepareStatement(
+                 "DELETE FROM `versions` WHERE `type` = ? AND `build` <= ? AND `build` != ?");
+             final PreparedStatement versionStatement = this.connection.prepareStatement(
+                 "INSERT OR IGNORE INTO `versions` (`type`, `build`, `identifier`, `file_name`, `url`) VALUES (?, ?, ?, ?, ?)")) {
+            typeStatement.setString(1, type.getPath());
+            typeStatement.setInt(2, snapshot.getLatest());
+            typeStatement.setInt(3, snapshot.getEvicted());
+            typeStatement.executeUpdate();
+            for (final PreparedStatement evictStatement : new PreparedStatement[] {evictBuildStatement,
+                evictVersionStatement}) {
+                evictStatement.setString(1, type.getPath());
+                evictStatement.setInt(2, snapshot.getEvicted());
+                evictStatement.setInt(3, snapshot.getLatest());
+                evictStatement.executeUpdate();
+            }
+            for (final Map.Entry<Integer, Map<String, Project.Type.Version>> build : snapshot.getResolved().entrySet()) {
+                buildStatement.setString(1, type.getPath());
+                buildStatement.setInt(2, build.getKey());
+                buildStatement.setLong(3, snapshot.getDiscovered().getOrDefault(build.getKey(), 0L));
+                buildStatement.addBatch();
+                for (final Project.Type.Version version : build.getValue().values()) {
+                    versionStatement.setString(1, type.getPath());
+                    versionStatement.setInt(2, build.getKey());
+                    versionStatement.setString(3, version.getIdentifier());
+                    versionStatement.setString(4, version.getFileName());
+                    versionStatement.setString(5, version.getDownloadUrl());
+                    versionStatement.addBatch();
+                }
+            }
+            buildStatement.executeBatch();
+            versionStatement.executeBatch();
+            this.connection.commit();
+        } catch (final SQLException e) {
+            this.connection.rollback();
+            throw e;
+        } finally {
+            this.connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Delete the stored builds of a type, after it was removed or its
+     * schema changed the way its artifacts are classified. Download
+     * counts are kept
+     *
+     * @param path Type path
+     */
+    synchronized void delete(final String path) throws SQLException {
+        this.connection.setAutoCommit(false);
+        try {
+            for (final String table : new String[] {"types", "builds", "versions"}) {
+                try (final PreparedStatement statement = this.connection.prepareStatement(
+                    "DELETE FROM `" + table + "` WHERE `type` = ?")) {
+                    statement.setString(1, path);
+                    statement.executeUpdate();
+                }
+            }
+            this.connection.commit();
+        } catch (final SQLException e) {
+            this.connection.rollback();
+            throw e;
+        } finally {
+            this.connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Load all artifacts that have been mirrored
+     *
+     * @return Mirrored artifacts
+     */
+    synchronized List<ArtifactMirror.Artifact> loadArtifacts() throws SQLException {
+        final List<ArtifactMirror.Artifact> artifacts = new ArrayList<>();
+        try (final Statement statement = this.connection.createStatement();
+             final ResultSet resultSet = statement.executeQuery("SELECT `url`, `hash`, `size` FROM `artifacts`")) {
+            while (resultSet.next()) {
+                artifacts.add(new ArtifactMirror.Artifact(resultSet.getString("url"), resultSet.getString("hash"),
+                    resultSet.getLong("size")));
+            }
+        }
+        return artifacts;
+    }
+
+    synchronized void saveArtifact(final ArtifactMirror.Artifact artifact) throws SQLException {
+        try (final PreparedStatement statement = this.connection.prepareStatement(
+            "INSERT OR REPLACE INTO `artifacts` (`url`, `hash`, `size`) VALUES (?, ?, ?)")) {
+            statement.setString(1, artifact.getUrl());
+            statement.setString(2, artifact.getHash());
+            statement.setLong(3, artifact.getSize());
+            statement.executeUpdate();
+        }
+    }
+
+    synchronized void deleteArtifact(final String url) throws SQLException {
+        try (final PreparedStatement statement = this.connection.prepareStatement(
+            "DELETE FROM `artifacts` WHERE `url` = ?")) {
+            statement.setString(1, url);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Add download counts in a single transaction
+     *
+     * @param counts Counts to add
+     */
+    synchronized void saveDownloads(final Map<DownloadStats.Key, Long> counts) throws SQLException {
+        this.connection.setAutoCommit(false);
+        try (final PreparedStatement statement = this.connection.prepareStatement(
+            "INSERT INTO `downloads` (`type`, `build`, `version`, `day`, `count`) VALUES (?, ?, ?, ?, ?) "
+                + "ON CONFLICT (`type`, `build`, `version`, `day`) DO UPDATE SET `count` = `count` + excluded.`count`")) {
+            for (final Map.Entry<DownloadStats.Key, Long> entry : counts.entrySet()) {
+                statement.setString(1, entry.getKey().getType());
+                statement.setInt(2, entry.getKey().getBuild());
+                statement.setString(3, entry.getKey().getVersion());
+                statement.setLong(4, entry.getKey().getDay());
+                statement.setLong(5, entry.getValue());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            this.connection.commit();
+        } catch (final SQLException e) {
+            this.connection.rollback();
+            throw e;
+        } finally {
+            this.connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Load the download counts of a project. Counts of days before the
+     * first requested one are summed up under day -1
+     *
+     * @param project  Project identifier
+     * @param firstDay First day to keep daily counts of, in days since the epoch
+     * @return Counts by key
+     */
+    synchronized Map<DownloadStats.Key, Long> loadDownloads(final String project, final long firstDay)
+        throws SQLException {
+        final Map<DownloadStats.Key, Long> counts = new HashMap<>();
+        // The paths of all types of a project sort between "project/" and "project0"
+        try (final PreparedStatement statement = this.connection.prepareStatement(
+            "SELECT `type`, `build`, `version`, CASE WHEN `day` >= ? THEN `day` ELSE -1 END AS `bucket`, "
+                + "SUM(`count`) AS `count` FROM `downloads` WHERE `type` >= ? AND `type` < ? "
+                + "GROUP BY `type`, `build`, `version`, `bucket`")) {
+            statement.setLong(1, firstDay);
+            statement.setString(2, project + "/");
+            statement.setString(3, project + "0");
+            try (final ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    counts.put(new DownloadStats.Key(resultSet.getString("type"), resultSet.getInt("build"),
+                        resultSet.getString("version"), resultSet.getLong("bucket")), resultSet.getLong("count"));
+                }
+            }
+        }
+        return counts;
+    }
+
+    synchronized void close() {
+        try {
+            this.connection.close();
+        } catch (final SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
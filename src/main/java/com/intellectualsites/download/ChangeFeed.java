@@ -0,0 +1,170 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import xyz.kvantum.server.api.util.KvantumJsonFactory;
+import xyz.kvantum.server.api.util.MapBuilder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded feed of catalog changes. Whenever a type changes its new snapshot
+ * is compared to the last one seen, and every added build, moved latest
+ * label and evicted build is appended as an event with an increasing
+ * sequence number. Events are encoded once, when they are appended, and the
+ * oldest events are overwritten once the feed is full. Sequence numbers start
+ * at the boot time, so that those handed out before a restart are recognized.
+ * The boot time is taken in seconds, keeping sequence numbers exact as
+ * JavaScript numbers
+ */
+final class ChangeFeed {
+
+    private final Event[] events;
+    private final Map<String, Project.Type.Snapshot> snapshots = new HashMap<>();
+    private final long first;
+    private long sequence;
+
+    /**
+     * Create a new feed
+     *
+     * @param capacity Number of events kept
+     */
+    ChangeFeed(final int capacity) {
+        this.events = new Event[Math.max(1, capacity)];
+        this.sequence = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) << 20;
+        this.first = this.sequence + 1;
+    }
+
+    /**
+     * Remember the builds of a type without reporting them, such as builds
+     * restored on startup
+     *
+     * @param type Type to remember
+     */
+    synchronized void seed(final Project.Type type) {
+        this.snapshots.put(type.getPath(), type.getSnapshot());
+    }
+
+    /**
+     * Report the changes of a type since it was last seen. The first
+     * population of a type isn't reported, as its builds aren't new
+     *
+     * @param type Type that changed
+     */
+    synchronized void update(final Project.Type type) {
+        final Project.Type.Snapshot snapshot = type.getSnapshot();
+        final Project.Type.Snapshot previous = this.snapshots.put(type.getPath(), snapshot);
+        if (previous == snapshot || previous == null || !previous.isPopulated()) {
+            return;
+        }
+        final Map<Integer, ?> previousBuilds = previous.getResolved();
+        final int previousLatest = previous.getLatest();
+        final String time = Instant.now().toString();
+        for (final Integer build : snapshot.getResolved().keySet()) {
+            if (!previousBuilds.containsKey(build)) {
+                this.append("build_added", type.getPath(), build, null, time);
+            }
+        }
+        if (snapshot.getLatest() != previousLatest && snapshot.getLatest() != -1) {
+            this.append("latest_moved", type.getPath(), snapshot.getLatest(),
+                previousLatest == -1 ? null : previousLatest, time);
+        }
+        for (final Integer build : previousBuilds.keySet()) {
+            if (!snapshot.getResolved().containsKey(build)) {
+                this.append("build_evicted", type.getPath(), build, null, time);
+            }
+        }
+    }
+
+    /**
+     * Forget a type that no longer exists
+     *
+     * @param path Path of the removed type
+     */
+    synchronized void remove(final String path) {
+        this.snapshots.remove(path);
+    }
+
+    private void append(final String name, final String path, final int build, final Integer previous,
+        final String time) {
+        final long sequence = ++this.sequence;
+        final MapBuilder<String, Object> builder = MapBuilder.<String, Object>newTreeMap().put("seq", sequence)
+            .put("event", name).put("path", path).put("build", build).put("time", time);
+        if (previous != null) {
+            builder.put("previous", previous);
+        }
+        final String json = KvantumJsonFactory.toJSONObject(builder.get()).toJSONString();
+        this.events[(int) (sequence % this.events.length)] = new Event(sequence, json,
+            "id: " + sequence + "\nevent: " + name + "\ndata: " + json + "\n\n");
+    }
+
+    /**
+     * Read the events that were appended after a sequence number
+     *
+     * @param since Sequence number of the last event the client has seen
+     * @return Events after it. The batch is reset if the client fell behind
+     *         by more than the capacity of the feed, or if its sequence number
+     *         is from before a restart, in which case it has to reload
+     */
+    synchronized Batch read(final long since) {
+        final long oldest = Math.max(this.first, this.sequence - this.events.length + 1);
+        if (since > this.sequence || since < oldest - 1) {
+            return new Batch(this.sequence, true, Collections.emptyList());
+        }
+        final List<Event> events = new ArrayList<>((int) (this.sequence - since));
+        for (long sequence = since + 1; sequence <= this.sequence; sequence++) {
+            events.add(this.events[(int) (sequence % this.events.length)]);
+        }
+        return new Batch(this.sequence, false, events);
+    }
+
+    synchronized long getSequence() {
+        return this.sequence;
+    }
+
+    @Getter @RequiredArgsConstructor static final class Event {
+        private final long sequence;
+        private final String json;
+        private final String frame;
+    }
+
+    /**
+     * Events read from the feed
+     */
+    @Getter @RequiredArgsConstructor static final class Batch {
+        private final long sequence;
+        private final boolean reset;
+        private final List<Event> events;
+    }
+
+}
@@ -0,0 +1,103 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker guarding a single jenkins_base. Once enough consecutive
+ * refreshes have failed the host is considered down, and refreshes are
+ * skipped rather than left to time out. A single probe is let through every
+ * probe interval, and the first one that succeeds closes the breaker again
+ */
+final class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long probeInterval;
+
+    private int failures;
+    private boolean open;
+    private boolean probing;
+    private long openedAt;
+
+    /**
+     * @param failureThreshold Consecutive failures after which the breaker opens
+     * @param probeInterval    Seconds between probes while the breaker is open
+     */
+    CircuitBreaker(final int failureThreshold, final long probeInterval) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.probeInterval = TimeUnit.SECONDS.toNanos(probeInterval);
+    }
+
+    /**
+     * Check whether a call may be made. While the breaker is open this only
+     * succeeds for a single probe once the probe interval has passed
+     *
+     * @return True if the call may be made
+     */
+    synchronized boolean tryAcquire() {
+        if (!this.open) {
+            return true;
+        }
+        if (this.probing || System.nanoTime() - this.openedAt < this.probeInterval) {
+            return false;
+        }
+        this.probing = true;
+        return true;
+    }
+
+    /**
+     * Record a successful call
+     *
+     * @return True if this closed the breaker
+     */
+    synchronized boolean onSuccess() {
+        final boolean closed = this.open;
+        this.failures = 0;
+        this.open = false;
+        this.probing = false;
+        return closed;
+    }
+
+    /**
+     * Record a failed call
+     *
+     * @return True if this opened the breaker
+     */
+    synchronized boolean onFailure() {
+        this.probing = false;
+        final boolean opened = !this.open && ++this.failures >= this.failureThreshold;
+        if (opened || this.open) {
+            this.open = true;
+            this.openedAt = System.nanoTime();
+        }
+        return opened;
+    }
+
+    synchronized boolean isOpen() {
+        return this.open;
+    }
+
+}
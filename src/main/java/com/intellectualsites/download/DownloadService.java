@@ -34,20 +34,36 @@ import xyz.kvantum.server.api.util.AutoCloseable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 
 class DownloadService extends AutoCloseable {
 
+    /**
+     * Start the service
+     *
+     * @param args Optionally the folder to read project schemas from, ./projects by default
+     */
     public static void main(final String[] args) {
-        new DownloadService();
+        new DownloadService(new File(args.length > 0 ? args[0] : "./projects"));
     }
 
-    private Timer timer;
+    private volatile Map<String, Project> projects;
+    private final VersionIndex versionIndex = new VersionIndex();
+    private ChangeFeed changeFeed;
+    private ProjectListing projectListing;
+    private Refresher refresher;
+    private CatalogStore catalogStore;
+    private ArtifactMirror artifactMirror;
+    private DownloadStats downloadStats;
+    private RateLimiter rateLimiter;
+    private SchemaWatcher schemaWatcher;
 
-    private DownloadService() {final File projectFolder = new File("./projects");
+    DownloadService(final File projectFolder) {
         if (!projectFolder.exists() || !projectFolder.isDirectory()) {
             System.out.println("No project folder exists. Attempting to create one...");
             if (!projectFolder.mkdir()) {
@@ -60,7 +76,6 @@ class DownloadService extends AutoCloseable {
         ConfigurationFactory.load(DownloadServiceConfig.class, new File("./"));
         System.out.println("Loading projects...");
         final Map<String, Project> projects = new HashMap<>();
-        final JSONParser jsonParser = new JSONParser();
         try {
             Files.list(projectFolder.toPath()).forEach(path -> {
                 if (!path.getFileName().toString().endsWith("json")) {
@@ -68,49 +83,251 @@ class DownloadService extends AutoCloseable {
                     return;
                 }
                 System.out.printf("Found project schema file: %s\n", path.getFileName());
-                try {
-                    final JSONObject object = (JSONObject) jsonParser.parse(String.join("\n",
-                        Files.readAllLines(path)));
-                    final Project project = new Project(path.getFileName().getFileName().toString().split("\\.")[0], object);
+                final Project project = readProject(path);
+                if (project != null) {
                     System.out.printf("Read project %s\n", project.getIdentifier());
                     projects.put(project.getIdentifier(), project);
-                } catch (final IOException | ParseException e) {
-                    System.err.printf("Failed to read project schema (file: %s)", path.getFileName());
-                    e.printStackTrace();
                 }
             });
         } catch (final IOException e) {
             System.err.println("Failed to load project schemas");
             e.printStackTrace();
         }
+        this.projects = projects;
         System.out.println("Projects read...");
 
         //
-        // Setups a timer that re-fetches build info
+        // Open the catalog store, and the artifact mirror if enabled
         //
-        if (DownloadServiceConfig.Download.refetchTime != -1) {
-            System.out.printf("Setting up project re-fetching scheduler. Will run every %d seconds\n",
-                DownloadServiceConfig.Download.refetchTime);
-            this.timer = new Timer();
-            this.timer.scheduleAtFixedRate(new TimerTask() {
-                @Override public void run() {
-                    for (final Project project : projects.values()) {
-                        project.loadBuilds();
+        if (DownloadServiceConfig.Storage.enabled) {
+            try {
+                this.catalogStore = new CatalogStore(DownloadServiceConfig.Storage.file);
+            } catch (final SQLException e) {
+                System.err.println("Failed to open the catalog store");
+                e.printStackTrace();
+            }
+        }
+        if (DownloadServiceConfig.Mirror.enabled) {
+            try {
+                this.artifactMirror = new ArtifactMirror(new File(DownloadServiceConfig.Mirror.folder).toPath(),
+                    DownloadServiceConfig.Mirror.maxSize * 1024L * 1024L,
+                    DownloadServiceConfig.Mirror.cacheSize * 1024L * 1024L, this.catalogStore);
+            } catch (final IOException e) {
+                System.err.println("Failed to open the artifact mirror");
+                e.printStackTrace();
+            }
+        }
+
+        //
+        // Start the server using the quickstart utility. All types are reported
+        // as loading until their builds have been restored or fetched
+        //
+        this.refresher = new Refresher(DownloadServiceConfig.Refresh.threads,
+            DownloadServiceConfig.Refresh.hostConcurrency, DownloadServiceConfig.Refresh.failureThreshold,
+            DownloadServiceConfig.Refresh.probeInterval);
+        this.changeFeed = new ChangeFeed(DownloadServiceConfig.Changes.capacity);
+        this.downloadStats = new DownloadStats(this.catalogStore, DownloadServiceConfig.Stats.flushInterval);
+        if (DownloadServiceConfig.RateLimit.enabled) {
+            this.rateLimiter = new RateLimiter(DownloadServiceConfig.RateLimit.requestRate,
+                DownloadServiceConfig.RateLimit.requestBurst, DownloadServiceConfig.RateLimit.downloadRate,
+                DownloadServiceConfig.RateLimit.downloadBurst, DownloadServiceConfig.RateLimit.maxClients);
+        }
+        this.projectListing = new ProjectListing(projects, this.artifactMirror, this.refresher,
+            this.versionIndex, this.changeFeed, this.downloadStats, this.rateLimiter);
+        QuickStart.newStandaloneServer(this.projectListing).start();
+
+        //
+        // Restore the last known builds, and keep them stored as they change
+        //
+        final CatalogStore catalogStore = this.catalogStore;
+        if (catalogStore != null) {
+            for (final Project project : projects.values()) {
+                for (final Project.Type type : project.getTypes()) {
+                    try {
+                        if (catalogStore.load(type)) {
+                            Logger.info("Restored stored builds of {0}", type.getPath());
+                        }
+                    } catch (final SQLException e) {
+                        Logger.error("Failed to restore builds of {0}", type.getPath());
+                        e.printStackTrace();
                     }
                 }
-            }, 1000 * DownloadServiceConfig.Download.refetchTime, 1000 * DownloadServiceConfig.Download.refetchTime);
+            }
+            this.refresher.addListener(type -> {
+                try {
+                    catalogStore.save(type);
+                } catch (final SQLException e) {
+                    Logger.error("Failed to store builds of {0}", type.getPath());
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        //
+        // Index the versions of restored builds, and of every new build
+        //
+        for (final Project project : projects.values()) {
+            project.getTypes().forEach(this.versionIndex::update);
+        }
+        this.refresher.addListener(this.versionIndex::update);
+        this.refresher.addListener(type -> this.projectListing.invalidateTree());
+
+        //
+        // Report every change after the restored builds to clients of the change feed
+        //
+        for (final Project project : projects.values()) {
+            project.getTypes().forEach(this.changeFeed::seed);
         }
+        this.refresher.addListener(this.changeFeed::update);
 
         //
-        // Start the server using the quickstart utility
+        // Mirror the artifacts of restored builds, and of every new build
+        //
+        final ArtifactMirror artifactMirror = this.artifactMirror;
+        if (artifactMirror != null) {
+            for (final Project project : projects.values()) {
+                project.getTypes().forEach(artifactMirror::mirror);
+            }
+            this.refresher.addListener(artifactMirror::mirror);
+        }
+
+        //
+        // Poll every job on its own interval, adapting to how often it builds
+        //
+        if (DownloadServiceConfig.Download.refetchTime != -1) {
+            System.out.printf("Setting up project re-fetching scheduler. Jobs are polled every %d to %d seconds\n",
+                DownloadServiceConfig.Download.minRefetchTime, DownloadServiceConfig.Download.maxRefetchTime);
+            this.refresher.poll(DownloadServiceConfig.Download.refetchTime,
+                DownloadServiceConfig.Download.minRefetchTime, DownloadServiceConfig.Download.maxRefetchTime);
+        }
+
         //
-        QuickStart.newStandaloneServer(new ProjectListing(projects)).start();
+        // Load the builds of all projects concurrently, in the background
+        //
+        this.refresher.refresh(projects.values());
+
+        //
+        // Apply schema changes without restarting
+        //
+        if (DownloadServiceConfig.Download.watchSchemas) {
+            try {
+                this.schemaWatcher = new SchemaWatcher(projectFolder.toPath(), this::reloadProject);
+                this.schemaWatcher.start();
+            } catch (final IOException e) {
+                System.err.println("Failed to watch the projects folder");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static Project readProject(final Path path) {
+        try {
+            final JSONObject object = (JSONObject) new JSONParser().parse(String.join("\n", Files.readAllLines(path)));
+            return new Project(path.getFileName().toString().split("\\.")[0], object);
+        } catch (final IOException | ParseException | RuntimeException e) {
+            System.err.printf("Failed to read project schema (file: %s)", path.getFileName());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Re-read a schema that was created, changed or deleted, and swap its
+     * project in. Types that still fetch the same job with the same version
+     * schemas keep their builds, only new and changed types are fetched
+     *
+     * @param path Schema file
+     */
+    private synchronized void reloadProject(final Path path) {
+        final String identifier = path.getFileName().toString().split("\\.")[0].toLowerCase();
+        final Project previous = this.projects.get(identifier);
+        Project project = null;
+        if (Files.exists(path)) {
+            project = readProject(path);
+            if (project == null) {
+                return; // Keep serving the previous schema until this one is fixed
+            }
+        } else if (previous == null) {
+            return;
+        }
+        final Map<String, Project.Type> previousTypes = new HashMap<>();
+        if (previous != null) {
+            for (final Project.Type type : previous.getTypes()) {
+                previousTypes.put(type.getPath(), type);
+            }
+        }
+        final Map<Project.Type, Project.Type> adopted = new HashMap<>();
+        final List<Project.Type> changed = new ArrayList<>();
+        final List<Project.Type> superseded = new ArrayList<>();
+        if (project != null) {
+            for (final Project.Type type : project.getTypes()) {
+                final Project.Type previousType = previousTypes.remove(type.getPath());
+                if (previousType != null && type.adopt(previousType)) {
+                    adopted.put(previousType, type);
+                } else {
+                    changed.add(type);
+                    if (previousType != null) {
+                        superseded.add(previousType);
+                    }
+                }
+            }
+        }
+
+        final Map<String, Project> projects = new HashMap<>(this.projects);
+        if (project == null) {
+            projects.remove(identifier);
+        } else {
+            projects.put(identifier, project);
+        }
+        this.projects = projects;
+        this.projectListing.setProjects(projects);
+
+        previousTypes.keySet().forEach(this.versionIndex::remove);
+        previousTypes.keySet().forEach(this.changeFeed::remove);
+        adopted.values().forEach(this.changeFeed::update);
+        if (project != null) {
+            project.getTypes().forEach(this.versionIndex::update);
+        }
+        adopted.forEach(this.refresher::replace);
+        previousTypes.values().forEach(this.refresher::remove);
+        superseded.forEach(this.refresher::remove);
+        // Builds stored for removed and changed types no longer match their schema
+        if (this.catalogStore != null) {
+            final List<String> paths = new ArrayList<>(previousTypes.keySet());
+            changed.forEach(type -> paths.add(type.getPath()));
+            for (final String typePath : paths) {
+                try {
+                    this.catalogStore.delete(typePath);
+                } catch (final SQLException e) {
+                    Logger.error("Failed to delete stored builds of {0}", typePath);
+                    e.printStackTrace();
+                }
+            }
+        }
+        changed.forEach(type -> this.refresher.refresh(type, 0L));
+        Logger.info("Reloaded project {0}: {1} types kept their builds, {2} are fetched and {3} were removed",
+            identifier, adopted.size(), changed.size(), previousTypes.size());
     }
 
     @Override protected void handleClose() {
-        Logger.info("Closing the timer...");
-        if (this.timer != null) {
-            this.timer.cancel();
+        if (this.schemaWatcher != null) {
+            this.schemaWatcher.close();
+        }
+        Logger.info("Closing the refresher...");
+        if (this.refresher != null) {
+            this.refresher.close();
+        }
+        if (this.artifactMirror != null) {
+            this.artifactMirror.close();
+        }
+        if (this.downloadStats != null) {
+            this.downloadStats.close();
+        }
+        if (this.rateLimiter != null) {
+            this.rateLimiter.close();
+        }
+        if (this.catalogStore != null) {
+            this.catalogStore.close();
         }
     }
 
@@ -31,7 +31,59 @@ import com.intellectualsites.configurable.annotations.Configuration;
 
     @SuppressWarnings("CanBeFinal") @ConfigSection public static class Download {
         public static int buildLimit = 10;
-        public static int refetchTime = 30 * 60; // fetch projects every 30 minutes
+        public static int refetchTime = 60; // initial polling interval in seconds, -1 disables polling
+        public static int minRefetchTime = 10; // polling interval right after a new build was found
+        public static int maxRefetchTime = 1800; // polling interval cap for idle jobs
+        public static boolean watchSchemas = true; // reload project schemas when they change
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class Retention {
+        public static int maxBuilds = 10; // builds kept per type unless its schema says otherwise, 0 keeps all
+        public static int maxAge = 0; // days a build is kept after it was found, 0 keeps builds regardless of age
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class Refresh {
+        public static int threads = 8; // worker threads shared by all refreshes
+        public static int hostConcurrency = 4; // concurrent refreshes per jenkins_base
+        public static int timeout = 30; // seconds before a Jenkins request is abandoned
+        public static int failureThreshold = 3; // consecutive failed refreshes before a jenkins_base is considered down
+        public static int probeInterval = 60; // seconds between probes of a jenkins_base that is down
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class Hooks {
+        public static String token = ""; // build notification hooks are disabled while empty
+        public static int debounce = 5; // seconds to wait for further notifications of the same job
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class RateLimit {
+        public static boolean enabled = true;
+        public static int requestRate = 600; // catalog requests per minute per client
+        public static int requestBurst = 120; // catalog requests a client may send at once
+        public static int downloadRate = 30; // downloads per minute per client
+        public static int downloadBurst = 10; // downloads a client may start at once
+        public static int maxClients = 250000; // clients tracked per limit, further clients share a single bucket until idle ones are evicted
+        public static boolean trustForwardedFor = false; // take the client address from X-Forwarded-For, behind a proxy
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class Changes {
+        public static int capacity = 1024; // catalog change events kept for clients of _changes
+        public static int retry = 5; // seconds clients of _changes are told to wait before polling again
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class Stats {
+        public static int flushInterval = 30; // seconds between writes of download counts to the catalog store
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class Storage {
+        public static boolean enabled = true;
+        public static String file = "./catalog.db";
+    }
+
+    @SuppressWarnings("CanBeFinal") @ConfigSection public static class Mirror {
+        public static boolean enabled = false; // serve artifacts locally instead of redirecting to Jenkins
+        public static String folder = "./mirror";
+        public static int maxSize = 4096; // megabytes
+        public static int cacheSize = 256; // megabytes of recently downloaded artifacts kept in memory
     }
 
 }
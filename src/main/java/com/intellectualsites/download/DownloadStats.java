@@ -0,0 +1,213 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import xyz.kvantum.server.api.logging.Logger;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts downloads per version, build and day. Downloads only increment an
+ * in-memory counter, and the counts are written to the catalog store in one
+ * transaction per flush interval, so a crash loses at most one interval
+ */
+final class DownloadStats {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final ConcurrentHashMap<Key, LongAdder> pending = new ConcurrentHashMap<>();
+    private final CatalogStore catalogStore;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create new download statistics
+     *
+     * @param catalogStore  Store the counts are flushed to, or null to only count the current day in memory
+     * @param flushInterval Seconds between flushes
+     */
+    DownloadStats(final CatalogStore catalogStore, final long flushInterval) {
+        this.catalogStore = catalogStore;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "download-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long interval = Math.max(1L, flushInterval);
+        this.scheduler.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Count a download
+     *
+     * @param version Downloaded version
+     * @param build   Number of the build the version belongs to
+     */
+    void record(final Project.Type.Version version, final int build) {
+        final Key key = new Key(version.getType().getPath(), build, version.getIdentifier(),
+            System.currentTimeMillis() / DAY);
+        LongAdder counter = this.pending.get(key);
+        if (counter == null) {
+            counter = this.pending.computeIfAbsent(key, ignored -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Write the counts since the last flush to the store. Counters of
+     * previous days are dropped once they have been written. Without a
+     * store, they are dropped right away so the counters stay bounded
+     */
+    synchronized void flush() {
+        final long today = System.currentTimeMillis() / DAY;
+        if (this.catalogStore == null) {
+            this.pending.keySet().removeIf(key -> key.getDay() < today);
+            return;
+        }
+        final Map<Key, Long> counts = new HashMap<>();
+        final Iterator<Map.Entry<Key, LongAdder>> iterator = this.pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Key, LongAdder> entry = iterator.next();
+            long count = entry.getValue().sumThenReset();
+            if (entry.getKey().getDay() < today) {
+                iterator.remove();
+                // Catch downloads that incremented the counter while it was removed
+                count += entry.getValue().sumThenReset();
+            }
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+        }
+        if (counts.isEmpty()) {
+            return;
+        }
+        try {
+            this.catalogStore.saveDownloads(counts);
+        } catch (final SQLException e) {
+            Logger.error("Failed to store {0} download counts, retrying next flush", counts.size());
+            e.printStackTrace();
+            counts.forEach((key, count) -> this.pending.computeIfAbsent(key, ignored -> new LongAdder()).add(count));
+        }
+    }
+
+    /**
+     * Summarize the downloads of a project: totals per type, version and
+     * build, and daily totals per type for the last days
+     *
+     * @param project Project identifier
+     * @param days    Number of days to report daily totals for
+     * @return Summary, ready to be encoded as JSON
+     */
+    synchronized Map<String, Object> summarize(final String project, final int days) {
+        final long firstDay = System.currentTimeMillis() / DAY - Math.max(0, days - 1);
+        final Map<Key, Long> counts = new HashMap<>();
+        if (this.catalogStore != null) {
+            try {
+                counts.putAll(this.catalogStore.loadDownloads(project, firstDay));
+            } catch (final SQLException e) {
+                Logger.error("Failed to load download counts of {0}", project);
+                e.printStackTrace();
+            }
+        }
+        for (final Map.Entry<Key, LongAdder> entry : this.pending.entrySet()) {
+            if (entry.getKey().getType().startsWith(project + "/")) {
+                counts.merge(entry.getKey(), entry.getValue().sum(), Long::sum);
+            }
+        }
+        long total = 0L;
+        final Map<String, Summary> summaries = new TreeMap<>();
+        for (final Map.Entry<Key, Long> entry : counts.entrySet()) {
+            final Key key = entry.getKey();
+            final long count = entry.getValue();
+            if (count == 0L) {
+                continue;
+            }
+            total += count;
+            final Summary summary = summaries.computeIfAbsent(key.getType(), ignored -> new Summary());
+            summary.total += count;
+            summary.versions.merge(key.getVersion(), count, Long::sum);
+            summary.builds.computeIfAbsent(key.getBuild(), ignored -> new TreeMap<>())
+                .merge(key.getVersion(), count, Long::sum);
+            if (key.getDay() >= firstDay) {
+                summary.days.merge(LocalDate.ofEpochDay(key.getDay()).toString(), count, Long::sum);
+            }
+        }
+        final Map<String, Object> types = new TreeMap<>();
+        summaries.forEach((type, summary) -> types.put(type, summary.toMap()));
+        final Map<String, Object> summary = new TreeMap<>();
+        summary.put("status", "success");
+        summary.put("project", project);
+        summary.put("total", total);
+        summary.put("types", types);
+        return summary;
+    }
+
+    void close() {
+        this.scheduler.shutdownNow();
+        this.flush();
+    }
+
+    /**
+     * Counter key. The day is counted in days since the epoch, in UTC
+     */
+    @Getter @EqualsAndHashCode @RequiredArgsConstructor static final class Key {
+        private final String type;
+        private final int build;
+        private final String version;
+        private final long day;
+    }
+
+    private static final class Summary {
+        private long total;
+        private final Map<String, Long> versions = new TreeMap<>();
+        private final Map<Integer, Map<String, Long>> builds = new TreeMap<>();
+        private final Map<String, Long> days = new TreeMap<>();
+
+        private Map<String, Object> toMap() {
+            final Map<String, Object> builds = new LinkedHashMap<>();
+            this.builds.forEach((build, versions) -> builds.put(Integer.toString(build), versions));
+            final Map<String, Object> map = new TreeMap<>();
+            map.put("total", this.total);
+            map.put("versions", this.versions);
+            map.put("builds", builds);
+            map.put("days", this.days);
+            return map;
+        }
+    }
+
+}
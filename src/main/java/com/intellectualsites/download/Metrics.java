@@ -0,0 +1,272 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Service metrics, exposed in the Prometheus text format. Recording only
+ * touches striped counters, so it is cheap enough for every request
+ */
+final class Metrics {
+
+    private static final double[] REQUEST_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1};
+    private static final double[] JENKINS_BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private static final Map<String, Histogram> REQUEST_DURATIONS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> JENKINS_DURATIONS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> JENKINS_FAILURES = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> REFRESH_DURATIONS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> REFRESH_FAILURES = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> DOWNLOADS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> RATE_LIMITED = new ConcurrentHashMap<>();
+    private static final LongAdder NOT_MODIFIED = new LongAdder();
+
+    private Metrics() {
+    }
+
+    /**
+     * Record the handling of an API request
+     *
+     * @param endpoint Endpoint that handled the request, such as "type" or "_health"
+     * @param nanos    Time taken to produce the response
+     */
+    static void recordRequest(final String endpoint, final long nanos) {
+        REQUEST_DURATIONS.computeIfAbsent(labels("endpoint", endpoint), key -> new Histogram(REQUEST_BUCKETS))
+            .record(nanos);
+    }
+
+    /**
+     * Record a request answered with 304 Not Modified
+     */
+    static void recordNotModified() {
+        NOT_MODIFIED.increment();
+    }
+
+    /**
+     * Record a request that was rejected by the rate limiter
+     *
+     * @param limit Limit that was exceeded, "request" or "download"
+     */
+    static void recordRateLimited(final String limit) {
+        RATE_LIMITED.computeIfAbsent(labels("limit", limit), key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Record a download
+     *
+     * @param version Downloaded version
+     * @param source  Where the download was served from, "mirror" or "jenkins"
+     */
+    static void recordDownload(final Project.Type.Version version, final String source) {
+        final String[] path = version.getType().getPath().split("/");
+        DOWNLOADS.computeIfAbsent(labels("project", path[0], "target", path[1], "type", path[2],
+            "version", version.getIdentifier(), "source", source), key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Time a Jenkins call, recording its latency and whether it failed
+     *
+     * @param job  Job the call was made for
+     * @param call Pending call
+     * @param <T>  Call result type
+     * @return The call
+     */
+    static <T> CompletableFuture<T> timeJenkinsCall(final String job, final CompletableFuture<T> call) {
+        final long start = System.nanoTime();
+        return call.whenComplete((result, error) -> {
+            final String labels = labels("job", job);
+            JENKINS_DURATIONS.computeIfAbsent(labels, key -> new Histogram(JENKINS_BUCKETS))
+                .record(System.nanoTime() - start);
+            if (error != null) {
+                JENKINS_FAILURES.computeIfAbsent(labels, key -> new LongAdder()).increment();
+            }
+        });
+    }
+
+    /**
+     * Record a refresh of a type
+     *
+     * @param type   Refreshed type
+     * @param nanos  Time taken by the refresh
+     * @param failed Whether the refresh failed
+     */
+    static void recordRefresh(final Project.Type type, final long nanos, final boolean failed) {
+        final String labels = labels("type", type.getPath());
+        REFRESH_DURATIONS.computeIfAbsent(labels, key -> new Histogram(JENKINS_BUCKETS)).record(nanos);
+        if (failed) {
+            REFRESH_FAILURES.computeIfAbsent(labels, key -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Write all metrics in the Prometheus text exposition format
+     *
+     * @param projects Projects to report catalog metrics for
+     * @return Metrics
+     */
+    static String scrape(final Collection<Project> projects) {
+        final StringBuilder builder = new StringBuilder();
+        writeHistograms(builder, "download_api_request_duration_seconds",
+            "Time taken to answer API requests, by endpoint", REQUEST_DURATIONS);
+        writeHeader(builder, "download_api_not_modified_total", "API requests answered with 304 Not Modified",
+            "counter");
+        builder.append("download_api_not_modified_total ").append(NOT_MODIFIED.sum()).append('\n');
+        writeCounters(builder, "download_downloads_total", "Downloads, by version and source", DOWNLOADS);
+        writeCounters(builder, "download_rate_limited_total", "Requests rejected by the rate limiter, by limit",
+            RATE_LIMITED);
+        writeHistograms(builder, "download_jenkins_request_duration_seconds",
+            "Latency of Jenkins API calls, by job", JENKINS_DURATIONS);
+        writeCounters(builder, "download_jenkins_request_failures_total",
+            "Failed or timed out Jenkins API calls, by job", JENKINS_FAILURES);
+        writeHistograms(builder, "download_refresh_duration_seconds", "Time taken to refresh a type",
+            REFRESH_DURATIONS);
+        writeCounters(builder, "download_refresh_failures_total", "Failed refreshes, by type", REFRESH_FAILURES);
+
+        final Map<String, Object> stale = new TreeMap<>();
+        final Map<String, Object> refreshedAt = new TreeMap<>();
+        final Map<String, Object> builds = new TreeMap<>();
+        final Map<String, Object> versions = new TreeMap<>();
+        for (final Project project : projects) {
+            for (final Project.Type type : project.getTypes()) {
+                final String labels = labels("type", type.getPath());
+                final Project.Type.Snapshot snapshot = type.getSnapshot();
+                int versionCount = 0;
+                for (final Map<String, Project.Type.Version> buildVersions : snapshot.getResolved().values()) {
+                    versionCount += buildVersions.size();
+                }
+                stale.put(labels, snapshot.isStale() ? 1 : 0);
+                refreshedAt.put(labels, TimeUnit.MILLISECONDS.toSeconds(type.getRefreshedAt()));
+                builds.put(labels, snapshot.getResolved().size());
+                versions.put(labels, versionCount);
+            }
+        }
+        writeGauges(builder, "download_type_stale", "Whether the builds of a type are stale", stale);
+        writeGauges(builder, "download_type_refreshed_timestamp_seconds",
+            "Time of the last successful refresh of a type", refreshedAt);
+        writeGauges(builder, "download_catalog_builds", "Builds in the catalog, by type", builds);
+        writeGauges(builder, "download_catalog_versions", "Versions in the catalog, by type", versions);
+        return builder.toString();
+    }
+
+    private static void writeHeader(final StringBuilder builder, final String name, final String help,
+        final String type) {
+        builder.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeCounters(final StringBuilder builder, final String name, final String help,
+        final Map<String, LongAdder> counters) {
+        writeHeader(builder, name, help, "counter");
+        for (final Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            builder.append(name).append('{').append(entry.getKey()).append("} ").append(entry.getValue().sum())
+                .append('\n');
+        }
+    }
+
+    private static void writeGauges(final StringBuilder builder, final String name, final String help,
+        final Map<String, Object> gauges) {
+        writeHeader(builder, name, help, "gauge");
+        for (final Map.Entry<String, Object> entry : gauges.entrySet()) {
+            builder.append(name).append('{').append(entry.getKey()).append("} ").append(entry.getValue())
+                .append('\n');
+        }
+    }
+
+    private static void writeHistograms(final StringBuilder builder, final String name, final String help,
+        final Map<String, Histogram> histograms) {
+        writeHeader(builder, name, help, "histogram");
+        for (final Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            entry.getValue().write(builder, name, entry.getKey());
+        }
+    }
+
+    /**
+     * Render label pairs, escaping their values
+     */
+    private static String labels(final String... pairs) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(pairs[i]).append("=\"").append(pairs[i + 1].replace("\\", "\\\\")
+                .replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Lock free histogram with fixed buckets
+     */
+    private static final class Histogram {
+        private final double[] bounds;
+        private final long[] boundNanos;
+        private final LongAdder[] buckets; // Not cumulative, the last bucket is +Inf
+        private final LongAdder sum = new LongAdder();
+
+        private Histogram(final double[] bounds) {
+            this.bounds = bounds;
+            this.boundNanos = new long[bounds.length];
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < bounds.length; i++) {
+                this.boundNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        private void record(final long nanos) {
+            int bucket = 0;
+            while (bucket < this.boundNanos.length && nanos > this.boundNanos[bucket]) {
+                bucket++;
+            }
+            this.buckets[bucket].increment();
+            this.sum.add(nanos);
+        }
+
+        private void write(final StringBuilder builder, final String name, final String labels) {
+            long count = 0;
+            for (int i = 0; i < this.buckets.length; i++) {
+                count += this.buckets[i].sum();
+                builder.append(name).append("_bucket{").append(labels).append(",le=\"")
+                    .append(i < this.bounds.length ? BigDecimal.valueOf(this.bounds[i]).stripTrailingZeros().toPlainString() : "+Inf")
+                    .append("\"} ").append(count).append('\n');
+            }
+            builder.append(name).append("_sum{").append(labels).append("} ")
+                .append(this.sum.sum() / (double) TimeUnit.SECONDS.toNanos(1)).append('\n');
+            builder.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+        }
+    }
+
+}
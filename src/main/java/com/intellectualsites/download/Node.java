@@ -25,23 +25,137 @@
 package com.intellectualsites.download;
 
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.util.Collection;
+import java.util.function.Consumer;
 
 abstract class Node<T> {
 
+    private volatile Payload payload;
+
     protected abstract String getIdentifier();
 
     protected abstract String getDisplayName();
 
     protected abstract JSONObject generateJSON();
 
-    @SuppressWarnings("unused") protected abstract T getChild(final String key);
+    protected abstract T getChild(final String key);
+
+    protected abstract Collection<T> getChildren();
+
+    /**
+     * Get the key that the children of this node are listed under
+     *
+     * @return Children key, or null if the node cannot have children
+     */
+    protected abstract String getChildrenName();
+
+    /**
+     * Write the node specific fields of this node, each preceded by a comma
+     *
+     * @param builder Builder to write to
+     */
+    protected void writeFields(final StringBuilder builder) {
+    }
 
     final JSONObject toJSON() {
-        final JSONObject jsonObject = this.generateJSON();
+        return this.toJSON(this.generateJSON());
+    }
+
+    private JSONObject toJSON(final JSONObject jsonObject) {
         final String displayName = this.getDisplayName();
         jsonObject.put("display_name", displayName == null ? this.getIdentifier() : displayName);
         jsonObject.put("identifier", this.getIdentifier());
         return jsonObject;
     }
 
+    /**
+     * Write this node and its children as JSON, straight from the catalog.
+     * Children are written as an object keyed by their identifiers
+     *
+     * @param builder Builder to write to
+     * @param depth   Number of child levels to include
+     */
+    void writeTree(final StringBuilder builder, final int depth) {
+        this.writeTree(builder, depth, this::writeFields, this.getChildren());
+    }
+
+    /**
+     * Write this node as JSON from the given fields and children, so that
+     * nodes with changing contents can write a consistent view of them
+     *
+     * @param builder  Builder to write to
+     * @param depth    Number of child levels to include
+     * @param fields   Writer of the node specific fields
+     * @param children Children of this node
+     */
+    final void writeTree(final StringBuilder builder, final int depth, final Consumer<StringBuilder> fields,
+        final Collection<T> children) {
+        final String displayName = this.getDisplayName();
+        builder.append('{');
+        writeField(builder, "identifier", this.getIdentifier());
+        builder.append(',');
+        writeField(builder, "display_name", displayName == null ? this.getIdentifier() : displayName);
+        fields.accept(builder);
+        final String childrenName = this.getChildrenName();
+        if (depth > 0 && childrenName != null) {
+            builder.append(",\"").append(childrenName).append("\":{");
+            boolean first = true;
+            for (final T child : children) {
+                final Node<?> node = (Node<?>) child;
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                builder.append('"').append(JSONValue.escape(node.getIdentifier())).append("\":");
+                node.writeTree(builder, depth - 1);
+            }
+            builder.append('}');
+        }
+        builder.append('}');
+    }
+
+    static void writeField(final StringBuilder builder, final String key, final Object value) {
+        builder.append('"').append(key).append("\":");
+        if (value instanceof String) {
+            builder.append('"').append(JSONValue.escape((String) value)).append('"');
+        } else {
+            builder.append(value);
+        }
+    }
+
+    /**
+     * Get the pre-encoded success payload of this node. If the node has
+     * not been serialized yet, the payload is encoded without being stored
+     *
+     * @return Encoded payload
+     */
+    Payload getPayload() {
+        final Payload payload = this.payload;
+        if (payload == null) {
+            return this.encode(this.generateJSON());
+        }
+        return payload;
+    }
+
+    /**
+     * Re-encode the success payload of this node. This should be called
+     * whenever the node contents change
+     */
+    final void serialize() {
+        this.payload = this.encode(this.generateJSON());
+    }
+
+    /**
+     * Encode a success payload from node specific JSON
+     *
+     * @param jsonObject JSON generated for this node
+     * @return Encoded payload
+     */
+    final Payload encode(final JSONObject jsonObject) {
+        this.toJSON(jsonObject).put("status", "success");
+        return new Payload(jsonObject.toJSONString());
+    }
+
 }
@@ -0,0 +1,118 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves catalog paths, such as {@code plotsquared/new/release/latest/bukkit},
+ * to nodes without walking the tree. Paths down to the type level are looked
+ * up in a flat map built from the project schemas, and the remainder of the
+ * path in the flat map of the published snapshot of the type
+ */
+final class PathIndex {
+
+    private static final String[] LEVELS = new String[] {"project", "target", "type", "build", "version"};
+
+    private final Node<?> root;
+    private final Map<String, Node<?>> schemaNodes;
+
+    PathIndex(final Node<Project> root, final Collection<Project> projects) {
+        this.root = root;
+        final Map<String, Node<?>> schemaNodes = new HashMap<>();
+        for (final Project project : projects) {
+            schemaNodes.put(project.getIdentifier(), project);
+            for (final Project.Target target : project.getChildren()) {
+                schemaNodes.put(project.getIdentifier() + "/" + target.getIdentifier(), target);
+            }
+            for (final Project.Type type : project.getTypes()) {
+                schemaNodes.put(type.getPath(), type);
+            }
+        }
+        this.schemaNodes = Collections.unmodifiableMap(schemaNodes);
+    }
+
+    /**
+     * Resolve a path
+     *
+     * @param path Path segments joined by '/', without leading or trailing slashes
+     * @return The node, or the first segment that couldn't be resolved
+     */
+    Resolution resolve(final String path) {
+        final Node<?> schemaNode = this.schemaNodes.get(path);
+        if (schemaNode != null) {
+            return new Resolution(schemaNode, null, null);
+        }
+        final int typeEnd = nthIndexOf(path, '/', 3);
+        if (typeEnd != -1) {
+            final Node<?> type = this.schemaNodes.get(path.substring(0, typeEnd));
+            if (type instanceof Project.Type) {
+                final Node<?> node = ((Project.Type) type).getSnapshot().getNodes().get(path.substring(typeEnd + 1));
+                if (node != null) {
+                    return new Resolution(node, null, null);
+                }
+            }
+        }
+        // Slow path, only taken for unknown paths: find the first unknown segment
+        final String[] segments = path.split("/");
+        Node<?> node = this.root;
+        for (int i = 0; i < segments.length; i++) {
+            final Node<?> child = i < LEVELS.length ? (Node<?>) node.getChild(segments[i]) : null;
+            if (child == null) {
+                return new Resolution(null, i < LEVELS.length ? LEVELS[i] : "path", segments[i]);
+            }
+            node = child;
+        }
+        return new Resolution(node, null, null);
+    }
+
+    private static int nthIndexOf(final String string, final char character, final int n) {
+        int index = -1;
+        for (int i = 0; i < n; i++) {
+            index = string.indexOf(character, index + 1);
+            if (index == -1) {
+                return -1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Result of a path resolution. Either the node is set, or the level and
+     * value of the first unknown segment
+     */
+    @Getter @RequiredArgsConstructor static final class Resolution {
+        private final Node<?> node;
+        private final String unknownType;
+        private final String unknownValue;
+    }
+
+}
@@ -0,0 +1,94 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * An encoded JSON response, together with the validators used to answer
+ * conditional requests for it
+ */
+@Getter final class Payload {
+
+    private final byte[] bytes;
+    private final String entityTag;
+    private final long lastModified;
+    private final String lastModifiedHeader;
+
+    Payload(final String json) {
+        this.bytes = json.getBytes(StandardCharsets.UTF_8);
+        this.entityTag = createEntityTag(this.bytes);
+        this.lastModified = System.currentTimeMillis() / 1000L * 1000L; // HTTP dates have second precision
+        this.lastModifiedHeader = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            ZonedDateTime.ofInstant(Instant.ofEpochMilli(this.lastModified), ZoneOffset.UTC));
+    }
+
+    /**
+     * Check whether a client already has this payload
+     *
+     * @param ifNoneMatch     Value of the If-None-Match header, may be null
+     * @param ifModifiedSince Value of the If-Modified-Since header, may be null
+     * @return True if the payload doesn't need to be sent again
+     */
+    boolean isNotModified(final String ifNoneMatch, final String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            // If-Modified-Since must be ignored when If-None-Match is present
+            return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(this.entityTag);
+        }
+        if (ifModifiedSince != null) {
+            try {
+                return ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli() >= this.lastModified;
+            } catch (final DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static String createEntityTag(final byte[] bytes) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < 8; i++) {
+            builder.append(String.format("%02x", digest[i]));
+        }
+        return builder.append('"').toString();
+    }
+
+}
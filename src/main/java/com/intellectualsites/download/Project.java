@@ -33,11 +33,18 @@ import org.incendo.jenkins.objects.BuildInfo;
 import org.incendo.jenkins.objects.JobInfo;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import xyz.kvantum.server.api.logging.Logger;
 import xyz.kvantum.server.api.util.KvantumJsonFactory;
 import xyz.kvantum.server.api.util.MapBuilder;
 
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Project extends Node<Project.Target> {
@@ -45,13 +52,17 @@ public class Project extends Node<Project.Target> {
     private final Jenkins jenkins;
     private final String identifier;
     private final Map<String, Target> targets;
+    private final List<Type> types;
     @Getter private final String displayName;
+    @Getter private final String jenkinsBase;
 
     public Project(final String name, final JSONObject schema) {
-        this.jenkins = Jenkins.newBuilder().withPath(schema.get("jenkins_base").toString()).build();
+        this.jenkinsBase = schema.get("jenkins_base").toString();
+        this.jenkins = Jenkins.newBuilder().withPath(this.jenkinsBase).build();
         this.identifier = name.toLowerCase();
         this.displayName = schema.getOrDefault("display_name", this.identifier).toString();
         this.targets = new TreeMap<>();
+        this.types = new ArrayList<>();
         if (!schema.containsKey("targets")) {
             throw new IllegalArgumentException("Schema does not contain target");
         }
@@ -103,46 +114,32 @@ public class Project extends Node<Project.Target> {
                     wiki = "";
                 }
 
+                final JSONObject retention = (JSONObject) typeJSON.getOrDefault("retention", new JSONObject());
+                final int maxBuilds = ((Number) retention.getOrDefault("max_builds",
+                    DownloadServiceConfig.Retention.maxBuilds)).intValue();
+                final int maxAge = ((Number) retention.getOrDefault("max_age",
+                    DownloadServiceConfig.Retention.maxAge)).intValue();
+
                 final Type type = new Type(typeIdentifier, typeJobName, typeJSON.getOrDefault("description", "").toString(),
-                    wiki, typeDisplayName, versionSchemas);
+                    wiki, typeDisplayName, versionSchemas, this.identifier + "/" + targetIdentifier + "/" + typeIdentifier,
+                    maxBuilds, maxAge);
                 types.put(typeIdentifier, type);
+                this.types.add(type);
             }
             final Target target = new Target(targetIdentifier, targetDisplayName, types);
+            target.serialize();
             this.targets.put(targetIdentifier, target);
         }
-        this.loadBuilds();
+        this.serialize();
     }
 
     /**
-     * Load, or reload builds
+     * Get all types of all targets in this project
+     *
+     * @return Unmodifiable list of types
      */
-    public void loadBuilds() {
-        try {
-            Logger.info("Loading builds...");
-        } catch (final NullPointerException e) {
-            System.out.println("Loading builds...");
-        }
-        for (final Target target : this.targets.values()) {
-            for (final Type type : target.types.values()) {
-                try {
-                    type.populateBuilds();
-                } catch (final Throwable error) {
-                    try {
-                        Logger.error(
-                            "Failed to populate builds for type {0} in target {1} for project {2}",
-                            type.identifier == null ? "ty|null" : type.identifier,
-                            target.identifier == null ? "ta|null" : target.identifier,
-                            this.identifier == null ? "th|null" : this.identifier);
-                    } catch (final NullPointerException exception) {
-                        System.out.printf("Failed to populate builds for type %s in target %s for project %s",
-                            type.identifier == null ? "ty|null" : type.identifier,
-                            target.identifier == null ? "ta|null" : target.identifier,
-                            this.identifier == null ? "th|null" : this.identifier);
-                    }
-                    error.printStackTrace();
-                }
-            }
-        }
+    public List<Type> getTypes() {
+        return Collections.unmodifiableList(this.types);
     }
 
     @Override public String getIdentifier() {
@@ -153,6 +150,14 @@ public class Project extends Node<Project.Target> {
         return this.targets.get(key);
     }
 
+    @Override protected Collection<Target> getChildren() {
+        return Collections.unmodifiableCollection(this.targets.values());
+    }
+
+    @Override protected String getChildrenName() {
+        return "targets";
+    }
+
     @Override public JSONObject generateJSON() {
         return KvantumJsonFactory.toJSONObject(
             MapBuilder.<String, Object>newTreeMap().put("targets",
@@ -178,77 +183,509 @@ public class Project extends Node<Project.Target> {
         @Override protected Type getChild(String key) {
             return this.types.get(key);
         }
+
+        @Override protected Collection<Type> getChildren() {
+            return Collections.unmodifiableCollection(this.types.values());
+        }
+
+        @Override protected String getChildrenName() {
+            return "types";
+        }
     }
 
-    @RequiredArgsConstructor public final class Type extends Node<Type.Build> {
+    public final class Type extends Node<Type.Build> {
 
         private final String identifier;
-        private final String jobName;
+        @Getter private final String jobName;
         private final String description;
         private final String wiki;
 
         @Getter private final String displayName;
-        private final Map<String, VersionSchema> versionSchemas;
+        @Getter private final Map<String, VersionSchema> versionSchemas;
+        private final ArtifactMatcher artifactMatcher;
+        @Getter private final String path;
+        private final int maxBuilds;
+        private final int maxAge;
 
-        private final Map<String, Build> builds = Collections.synchronizedMap(new TreeMap<>());
-        private JobInfo jobInfo;
+        /**
+         * The currently published builds. Refreshes build a new snapshot
+         * and swap it in, so readers never need to lock
+         */
+        private volatile Snapshot snapshot;
+        private volatile JobInfo jobInfo;
+        @Getter private volatile LoadState loadState = LoadState.LOADING;
+        @Getter private volatile long refreshedAt;
+        @Getter private volatile boolean retired;
+
+        Type(final String identifier, final String jobName, final String description, final String wiki,
+            final String displayName, final Map<String, VersionSchema> versionSchemas, final String path,
+            final int maxBuilds, final int maxAge) {
+            this.identifier = identifier;
+            this.jobName = jobName;
+            this.description = description;
+            this.wiki = wiki;
+            this.displayName = displayName;
+            this.versionSchemas = versionSchemas;
+            this.artifactMatcher = new ArtifactMatcher(versionSchemas.values());
+            this.path = path;
+            this.maxBuilds = maxBuilds;
+            this.maxAge = maxAge;
+            this.snapshot = new Snapshot(-1, Collections.emptyMap(), Collections.emptyMap(), 0, Collections.emptyMap(),
+                false, 0L);
+        }
 
         /**
-         * Repopulate the build list
+         * Repopulate the build list. The artifacts of a completed build never
+         * change, so build info is only requested for builds that haven't been
+         * resolved before. All build info requests are issued at once, and the
+         * new snapshot is published when every one of them has completed or
+         * timed out. Builds that couldn't be fetched are retried next refresh.
+         * Builds that fall out of the retention window are evicted, and never
+         * fetched again. If the job info can't be fetched, the current builds
+         * are kept and marked as stale
+         *
+         * @return Future completed once the refresh has been published, with
+         *         {@code true} if the builds changed
          */
-        void populateBuilds() throws Throwable {
-            this.jobInfo = jenkins.getJobInfo(this.jobName).get();
-            // this.builds.clear(); // Make sure it's emptied
-            final int latest = this.jobInfo.getLastCompletedBuild().getNumber();
-            List<BuildDescription> builds = new ArrayList<>(this.jobInfo.getBuilds());
-            builds.sort(Comparator.comparing(BuildDescription::getNumber).reversed());
-            if (builds.size() > DownloadServiceConfig.Download.buildLimit) {
-                builds = builds.subList(0, DownloadServiceConfig.Download.buildLimit);
-            }
-            Build latestBuild = null;
-            for (final BuildDescription buildDescription : builds) {
-                boolean isLatest = buildDescription.getNumber() == latest;
-                final BuildInfo buildInfo = buildDescription.getBuildInfo().get();
-                final Map<String, Version> versions = new TreeMap<>();
-                schemaLoop: for (final Map.Entry<String, VersionSchema> versionSchema : this.versionSchemas.entrySet()) {
-                    artifactLoop: for (final ArtifactDescription description : buildInfo.getArtifacts()) {
-                        if (versionSchema.getValue().artifactPattern.matcher(description.getFileName()).matches()) {
-                            final Version version = new Version(versionSchema.getKey(),
-                                description.getFileName(), description.getUrl(), versionSchema.getValue().getDisplayName(), versionSchema.getValue().isVisible());
-                            versions.put(versionSchema.getKey(), version);
-                            break artifactLoop;
-                        }
+        CompletableFuture<Boolean> populateBuilds() {
+            final long timeout = DownloadServiceConfig.Refresh.timeout;
+            return Metrics.timeJenkinsCall(this.jobName, jenkins.getJobInfo(this.jobName)
+                .orTimeout(timeout, TimeUnit.SECONDS)).thenCompose(jobInfo -> {
+                this.jobInfo = jobInfo;
+                final Snapshot snapshot = this.snapshot;
+                // A job that hasn't completed a build yet simply has no builds
+                final BuildDescription lastCompleted = jobInfo.getLastCompletedBuild();
+                final int latest = lastCompleted == null ? -1 : lastCompleted.getNumber();
+                List<BuildDescription> builds = new ArrayList<>(jobInfo.getBuilds());
+                builds.removeIf(buildDescription -> buildDescription.getNumber() > latest); // Still running
+                builds.sort(Comparator.comparing(BuildDescription::getNumber).reversed());
+                final int limit = this.maxBuilds > 0 ? Math.min(this.maxBuilds, DownloadServiceConfig.Download.buildLimit) :
+                    DownloadServiceConfig.Download.buildLimit;
+                if (builds.size() > limit) {
+                    builds = builds.subList(0, limit);
+                }
+                // Built off to the side and published in one write once complete
+                final Map<Integer, Map<String, Version>> resolved = new ConcurrentSkipListMap<>(snapshot.resolved);
+                final Map<Integer, Long> discovered = new ConcurrentHashMap<>(snapshot.discovered);
+                final List<CompletableFuture<Void>> fetches = new ArrayList<>();
+                for (final BuildDescription buildDescription : builds) {
+                    if (resolved.containsKey(buildDescription.getNumber())
+                        || buildDescription.getNumber() <= snapshot.evicted) {
+                        continue;
                     }
+                    fetches.add(Metrics.timeJenkinsCall(this.jobName, buildDescription.getBuildInfo()
+                        .orTimeout(timeout, TimeUnit.SECONDS))
+                        .thenAccept(buildInfo -> {
+                            discovered.put(buildDescription.getNumber(), System.currentTimeMillis());
+                            resolved.put(buildDescription.getNumber(), this.matchVersions(buildInfo));
+                        })
+                        .exceptionally(error -> {
+                            try {
+                                Logger.warn("Failed to fetch build {0} of {1}: {2}", buildDescription.getNumber(),
+                                    this.path, error.getMessage());
+                            } catch (final NullPointerException e) {
+                                System.out.printf("Failed to fetch build %d of %s: %s\n", buildDescription.getNumber(),
+                                    this.path, error.getMessage());
+                            }
+                            return null;
+                        }));
                 }
-                // final Build build = new Build(Integer.toString(buildInfo.getId()), versions, Integer.toString(buildInfo.getId()));
-                // Replaces old mappings
-                // this.builds.put(build.identifier, build);
-                // if (isLatest) {
-                //    latestBuild = build;
-                // }
-                final Build build;
-                if (isLatest) {
-                    build = new Build("latest", versions, "latest");
+                return CompletableFuture.allOf(fetches.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+                    final long refreshedAt = System.currentTimeMillis();
+                    // Keep the old label if the latest build couldn't be fetched
+                    final int published = resolved.containsKey(latest) ? latest : snapshot.latest;
+                    final int evicted = this.retain(resolved, discovered, published, snapshot.evicted);
+                    final boolean changed = published != snapshot.latest
+                        || !resolved.keySet().equals(snapshot.resolved.keySet());
+                    if (changed) {
+                        this.snapshot = new Snapshot(published, Collections.unmodifiableMap(new TreeMap<>(resolved)),
+                            Collections.unmodifiableMap(new TreeMap<>(discovered)), evicted, snapshot.builds, false,
+                            refreshedAt);
+                    } else if (snapshot.stale) {
+                        this.snapshot = snapshot.withStale(false, refreshedAt);
+                    } // else nothing changed, keep the already encoded snapshot
+                    this.refreshedAt = refreshedAt;
+                    return changed;
+                });
+            }).whenComplete((changed, error) -> {
+                if (error == null) {
+                    this.loadState = LoadState.LOADED;
                 } else {
-                    build = new Build(Integer.toString(buildInfo.getId()), versions, Integer.toString(buildInfo.getId()));
+                    this.markStale();
                 }
-                this.builds.put(build.identifier, build);
+            });
+        }
+
+        /**
+         * Mark this type as removed or replaced after its schema was reloaded.
+         * Refreshes that are still running no longer notify listeners
+         */
+        void retire() {
+            this.retired = true;
+        }
+
+        /**
+         * Mark the published builds as stale, as they could not be refreshed.
+         * They keep being served, together with the time of the last successful refresh.
+         * A type that has nothing to serve yet has failed to load
+         */
+        void markStale() {
+            final Snapshot snapshot = this.snapshot;
+            if (!snapshot.stale) {
+                this.snapshot = snapshot.withStale(true, this.refreshedAt);
+            }
+            if (this.loadState == LoadState.LOADING) {
+                this.loadState = LoadState.FAILED;
             }
         }
 
+        /**
+         * Evict the builds that fall out of the retention window: all but the
+         * newest maxBuilds, and those found more than maxAge days ago. Builds
+         * are evicted oldest first, so every build up to the newest evicted one
+         * is gone. The latest build is always kept
+         *
+         * @param resolved   Versions by build number, evicted builds are removed
+         * @param discovered Discovery times by build number, evicted builds are removed
+         * @param latest     Number of the latest build
+         * @param evicted    Number of the newest build that was evicted before
+         * @return Number of the newest evicted build
+         */
+        private int retain(final Map<Integer, ?> resolved, final Map<Integer, Long> discovered, final int latest,
+            final int evicted) {
+            final long oldest = this.maxAge > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(this.maxAge) :
+                Long.MIN_VALUE;
+            int newestEvicted = evicted;
+            int kept = 0;
+            boolean evicting = false;
+            for (final Integer build : new TreeSet<>(resolved.keySet()).descendingSet()) {
+                if (build != latest) {
+                    evicting = evicting || (this.maxBuilds > 0 && kept >= this.maxBuilds)
+                        || discovered.getOrDefault(build, Long.MAX_VALUE) < oldest;
+                    if (evicting) {
+                        resolved.remove(build);
+                        discovered.remove(build);
+                        newestEvicted = Math.max(newestEvicted, build);
+                        continue;
+                    }
+                }
+                kept++;
+            }
+            return newestEvicted;
+        }
+
+        /**
+         * Publish builds that were restored from storage, replacing the current snapshot
+         *
+         * @param latest     Number of the latest build
+         * @param resolved   Versions by build number
+         * @param discovered Times at which the builds were found, by build number
+         * @param evicted    Number of the newest build that was evicted
+         */
+        void restore(final int latest, final Map<Integer, Map<String, Version>> resolved,
+            final Map<Integer, Long> discovered, final int evicted) {
+            final Map<Integer, Map<String, Version>> builds = new TreeMap<>();
+            for (final Map.Entry<Integer, Map<String, Version>> entry : resolved.entrySet()) {
+                builds.put(entry.getKey(), Collections.unmodifiableMap(new TreeMap<>(entry.getValue())));
+            }
+            final Map<Integer, Long> discoveredBuilds = new TreeMap<>(discovered);
+            final int newestEvicted = this.retain(builds, discoveredBuilds, latest, evicted);
+            this.snapshot = new Snapshot(latest, Collections.unmodifiableMap(builds),
+                Collections.unmodifiableMap(discoveredBuilds), newestEvicted, this.snapshot.builds, this.snapshot.stale,
+                this.refreshedAt);
+            if (this.loadState != LoadState.LOADED) {
+                this.loadState = LoadState.RESTORED;
+            }
+        }
+
+        /**
+         * Take over the builds of the type this one replaces after its schema
+         * was reloaded. That is only possible if both fetch the same job and
+         * classify its artifacts the same way, otherwise this type has to be
+         * fetched. Descriptions and display names may differ, as all nodes
+         * are re-created
+         *
+         * @param previous Type that is being replaced
+         * @return True if the builds were taken over
+         */
+        boolean adopt(final Type previous) {
+            if (!this.jobName.equals(previous.jobName)
+                || !jenkinsBase.equals(previous.getProject().getJenkinsBase())
+                || !this.versionSchemas.keySet().equals(previous.versionSchemas.keySet())) {
+                return false;
+            }
+            for (final VersionSchema versionSchema : this.versionSchemas.values()) {
+                if (!versionSchema.classifiesLike(previous.versionSchemas.get(versionSchema.getIdentifier()))) {
+                    return false;
+                }
+            }
+            final Snapshot snapshot = previous.snapshot;
+            final Map<Integer, Map<String, Version>> resolved = new TreeMap<>();
+            for (final Map.Entry<Integer, Map<String, Version>> entry : snapshot.resolved.entrySet()) {
+                final Map<String, Version> versions = new TreeMap<>();
+                for (final Version version : entry.getValue().values()) {
+                    versions.put(version.getIdentifier(), this.createVersion(version.getIdentifier(),
+                        version.getFileName(), version.getDownloadUrl()));
+                }
+                resolved.put(entry.getKey(), Collections.unmodifiableMap(versions));
+            }
+            // The retention window may have changed
+            final Map<Integer, Long> discovered = new TreeMap<>(snapshot.discovered);
+            final int evicted = this.retain(resolved, discovered, snapshot.latest, snapshot.evicted);
+            this.jobInfo = previous.jobInfo;
+            this.refreshedAt = previous.refreshedAt;
+            this.snapshot = new Snapshot(snapshot.latest, Collections.unmodifiableMap(resolved),
+                Collections.unmodifiableMap(discovered), evicted, Collections.emptyMap(), snapshot.stale,
+                snapshot.refreshedAt);
+            this.loadState = previous.loadState;
+            return true;
+        }
+
+        /**
+         * Create a version of this type from a stored artifact
+         *
+         * @param identifier  Version identifier
+         * @param fileName    Artifact file name
+         * @param downloadUrl Artifact download URL
+         * @return Created version, or null if the type no longer has a schema for the version
+         */
+        Version createVersion(final String identifier, final String fileName, final String downloadUrl) {
+            final VersionSchema versionSchema = this.versionSchemas.get(identifier);
+            if (versionSchema == null) {
+                return null;
+            }
+            final Version version = new Version(identifier, fileName, downloadUrl, versionSchema.getDisplayName(),
+                versionSchema.isVisible(), versionSchema.captureVersion(fileName));
+            version.serialize();
+            return version;
+        }
+
+        Snapshot getSnapshot() {
+            return this.snapshot;
+        }
+
+        Project getProject() {
+            return Project.this;
+        }
+
+        private Map<String, Version> matchVersions(final BuildInfo buildInfo) {
+            final Map<String, Version> versions = new TreeMap<>();
+            for (final ArtifactMatcher.Match<ArtifactDescription> match :
+                this.artifactMatcher.match(buildInfo.getArtifacts(), ArtifactDescription::getFileName).values()) {
+                final VersionSchema versionSchema = match.getVersionSchema();
+                final Version version = new Version(versionSchema.getIdentifier(), match.getArtifact().getFileName(),
+                    match.getArtifact().getUrl(), versionSchema.getDisplayName(), versionSchema.isVisible(),
+                    match.getCaptures().get(VersionSchema.VERSION_GROUP));
+                version.serialize();
+                versions.put(versionSchema.getIdentifier(), version);
+            }
+            return Collections.unmodifiableMap(versions);
+        }
+
         @Override protected String getIdentifier() {
             return this.identifier;
         }
 
         @Override protected JSONObject generateJSON() {
-            return KvantumJsonFactory.toJSONObject(
-                MapBuilder.<String, Object>newTreeMap().put("builds",
-                    KvantumJsonFactory.toJsonArray(this.builds.keySet())).put("description", description)
-                    .put("wiki", wiki).get());
+            return this.snapshot.generateJSON();
+        }
+
+        @Override Payload getPayload() {
+            return this.snapshot.payload;
         }
 
         @Override protected Build getChild(String key) {
-            return builds.get(key);
+            return this.snapshot.builds.get(key);
+        }
+
+        @Override protected Collection<Build> getChildren() {
+            return this.snapshot.builds.values();
+        }
+
+        @Override protected String getChildrenName() {
+            return "builds";
+        }
+
+        @Override void writeTree(final StringBuilder builder, final int depth) {
+            // Read the snapshot once, so that the builds and the stale flag belong together
+            final Snapshot snapshot = this.snapshot;
+            this.writeTree(builder, depth, fields -> this.writeFields(fields, snapshot), snapshot.builds.values());
+        }
+
+        @Override protected void writeFields(final StringBuilder builder) {
+            this.writeFields(builder, this.snapshot);
+        }
+
+        private void writeFields(final StringBuilder builder, final Snapshot snapshot) {
+            builder.append(',');
+            writeField(builder, "description", this.description);
+            builder.append(',');
+            writeField(builder, "wiki", this.wiki);
+            builder.append(',');
+            writeField(builder, "stale", snapshot.stale);
+            if (snapshot.stale) {
+                builder.append(',');
+                writeField(builder, "refreshed_at", snapshot.getRefreshedAtString());
+            }
+        }
+
+        /**
+         * Immutable view of the builds of a type, together with its encoded payload
+         */
+        final class Snapshot {
+            @Getter private final int latest;
+            @Getter private final Map<Integer, Map<String, Version>> resolved;
+            @Getter private final Map<Integer, Long> discovered;
+            @Getter private final int evicted;
+            private final Map<String, Build> builds;
+            @Getter private final Map<String, Node<?>> nodes;
+            @Getter private final NavigableMap<String, Integer> index;
+            private final Map<String, Update> updates;
+            @Getter private final boolean stale;
+            private final long refreshedAt;
+            private final Payload payload;
+
+            private Snapshot(final int latest, final Map<Integer, Map<String, Version>> resolved,
+                final Map<Integer, Long> discovered, final int evicted, final Map<String, Build> previous,
+                final boolean stale, final long refreshedAt) {
+                this(latest, resolved, discovered, evicted, previous, stale, refreshedAt, null);
+            }
+
+            private Snapshot(final int latest, final Map<Integer, Map<String, Version>> resolved,
+                final Map<Integer, Long> discovered, final int evicted, final Map<String, Build> previous,
+                final boolean stale, final long refreshedAt, final Map<String, Update> updates) {
+                this.latest = latest;
+                this.resolved = resolved;
+                this.discovered = discovered;
+                this.evicted = evicted;
+                this.stale = stale;
+                this.refreshedAt = refreshedAt;
+                final Map<String, Build> builds = new TreeMap<>();
+                final Map<String, Node<?>> nodes = new HashMap<>();
+                final NavigableMap<String, Integer> index = new TreeMap<>(VersionIndex.ORDER);
+                final Map<String, Version> newest = new HashMap<>();
+                for (final Map.Entry<Integer, Map<String, Version>> entry : resolved.entrySet()) {
+                    final String buildIdentifier = this.getBuildIdentifier(entry.getKey());
+                    Build build = previous.get(buildIdentifier);
+                    if (build == null || build.versions != entry.getValue()) {
+                        build = new Build(buildIdentifier, entry.getValue(), buildIdentifier);
+                        build.serialize();
+                    }
+                    builds.put(buildIdentifier, build);
+                    nodes.put(buildIdentifier, build);
+                    for (final Version version : entry.getValue().values()) {
+                        nodes.put(buildIdentifier + "/" + version.getIdentifier(), version);
+                        // Builds are visited oldest first, so the newest build of a version wins
+                        if (version.getCapturedVersion() != null) {
+                            index.put(version.getCapturedVersion(), entry.getKey());
+                        }
+                        newest.put(version.getIdentifier(), version);
+                    }
+                }
+                this.builds = Collections.unmodifiableMap(builds);
+                this.nodes = Collections.unmodifiableMap(nodes);
+                this.index = Collections.unmodifiableNavigableMap(index);
+                if (updates == null) {
+                    final Map<String, Update> encoded = new HashMap<>();
+                    for (final Map.Entry<Integer, Map<String, Version>> entry : resolved.entrySet()) {
+                        for (final Version version : entry.getValue().values()) {
+                            if (newest.get(version.getIdentifier()) == version) {
+                                encoded.put(version.getIdentifier(), new Update(entry.getKey(),
+                                    this.getBuildIdentifier(entry.getKey()), version));
+                            }
+                        }
+                    }
+                    this.updates = Collections.unmodifiableMap(encoded);
+                } else {
+                    this.updates = updates;
+                }
+                this.payload = encode(this.generateJSON());
+            }
+
+            /**
+             * Get the identifier that a build is listed under
+             *
+             * @param build Build number
+             * @return "latest" for the latest build, the build number otherwise
+             */
+            String getBuildIdentifier(final int build) {
+                return build == this.latest ? "latest" : Integer.toString(build);
+            }
+
+            private Snapshot withStale(final boolean stale, final long refreshedAt) {
+                return new Snapshot(this.latest, this.resolved, this.discovered, this.evicted, this.builds, stale,
+                    refreshedAt, this.updates);
+            }
+
+            /**
+             * Check whether these builds were restored or fetched, as opposed
+             * to the empty placeholder a type starts with
+             *
+             * @return True once the type has been populated
+             */
+            boolean isPopulated() {
+                return this.refreshedAt != 0L || !this.resolved.isEmpty();
+            }
+
+            /**
+             * Get the update check answer for a version
+             *
+             * @param identifier Version identifier
+             * @return Answers for clients on older and current builds, or null if no build has the version
+             */
+            Update getUpdate(final String identifier) {
+                return this.updates.get(identifier);
+            }
+
+            private JSONObject generateJSON() {
+                final MapBuilder<String, Object> builder = MapBuilder.<String, Object>newTreeMap().put("builds",
+                    KvantumJsonFactory.toJsonArray(this.builds.keySet())).put("description", description)
+                    .put("wiki", wiki).put("stale", this.stale);
+                if (this.stale) {
+                    builder.put("refreshed_at", this.getRefreshedAtString());
+                }
+                return KvantumJsonFactory.toJSONObject(builder.get());
+            }
+
+            /**
+             * Get the time of the last successful refresh before these builds went stale
+             *
+             * @return ISO-8601 timestamp, or null if the builds were never refreshed
+             */
+            private String getRefreshedAtString() {
+                return this.refreshedAt == 0L ? null : Instant.ofEpochMilli(this.refreshedAt).toString();
+            }
+        }
+
+        /**
+         * Pre-encoded answers to update checks for one version, pointing
+         * at the newest build that has it. The download goes through this
+         * service, so it is mirrored, counted and rate limited like any other
+         */
+        final class Update {
+            @Getter private final int build;
+            private final Payload upToDate;
+            private final Payload outdated;
+
+            private Update(final int build, final String buildIdentifier, final Version version) {
+                this.build = build;
+                final String download = "/download/api/" + path + "/" + buildIdentifier + "/"
+                    + version.getIdentifier() + "/download";
+                final String fields = ",\"build\":" + build + ",\"download\":\""
+                    + JSONValue.escape(download) + "\"}";
+                this.upToDate = new Payload("{\"status\":\"success\",\"update\":false" + fields);
+                this.outdated = new Payload("{\"status\":\"success\",\"update\":true" + fields);
+            }
+
+            /**
+             * Get the answer for a client
+             *
+             * @param current Build number the client runs
+             * @return Encoded answer
+             */
+            Payload answer(final int current) {
+                return current < this.build ? this.outdated : this.upToDate;
+            }
         }
 
         @RequiredArgsConstructor public final class Build extends Node<Version> {
@@ -269,14 +706,27 @@ public class Project extends Node<Project.Target> {
             @Override protected Version getChild(final String key) {
                 return versions.get(key);
             }
+
+            @Override protected Collection<Version> getChildren() {
+                return this.versions.values();
+            }
+
+            @Override protected String getChildrenName() {
+                return "versions";
+            }
         }
 
         @RequiredArgsConstructor public final class Version extends Node<Void> {
             private final String identifier;
-            private final String fileName;
+            @Getter private final String fileName;
             @Getter private final String downloadUrl;
             @Getter private final String displayName;
             @Getter private final boolean visible;
+            @Getter private final String capturedVersion;
+
+            Type getType() {
+                return Type.this;
+            }
 
             @Override protected String getIdentifier() {
                 return this.identifier;
@@ -285,20 +735,93 @@ public class Project extends Node<Project.Target> {
             @Override protected JSONObject generateJSON() {
                 return KvantumJsonFactory.toJSONObject(
                     MapBuilder.<String, Object>newTreeMap().put("fileName", this.fileName)
-                        .put("download", this.downloadUrl).put("visible", this.visible).get());
+                        .put("download", this.downloadUrl).put("visible", this.visible)
+                        .put("version", this.capturedVersion).get());
             }
 
             @Override protected Void getChild(final String key) {
                 throw new UnsupportedOperationException("Cannot generate version child");
             }
+
+            @Override protected Collection<Void> getChildren() {
+                return Collections.emptyList();
+            }
+
+            @Override protected String getChildrenName() {
+                return null;
+            }
+
+            @Override protected void writeFields(final StringBuilder builder) {
+                builder.append(',');
+                writeField(builder, "fileName", this.fileName);
+                builder.append(',');
+                writeField(builder, "download", this.downloadUrl);
+                builder.append(',');
+                writeField(builder, "visible", this.visible);
+                builder.append(',');
+                writeField(builder, "version", this.capturedVersion);
+            }
         }
     }
 
+    /**
+     * Load state of the builds of a type
+     */
+    enum LoadState {
+        /**
+         * No builds have been restored or fetched yet
+         */
+        LOADING,
+        /**
+         * Builds were restored from storage, but haven't been fetched from Jenkins yet
+         */
+        RESTORED,
+        /**
+         * Builds have been fetched from Jenkins
+         */
+        LOADED,
+        /**
+         * Builds couldn't be restored nor fetched. Retried on the next refresh
+         */
+        FAILED
+    }
+
     @RequiredArgsConstructor final class VersionSchema {
-        private final String identifier;
-        private final Pattern artifactPattern;
+        /**
+         * Name of the artifact pattern group that captures the version
+         */
+        static final String VERSION_GROUP = "version";
+
+        @Getter private final String identifier;
+        @Getter private final Pattern artifactPattern;
         @Getter private final String displayName;
         @Getter private final boolean visible;
+
+        /**
+         * Check whether this schema matches the same artifacts as another one
+         *
+         * @param other Other schema, may be null
+         * @return True if both have the same identifier and artifact pattern
+         */
+        boolean classifiesLike(final VersionSchema other) {
+            return other != null && this.identifier.equals(other.identifier)
+                && this.artifactPattern.pattern().equals(other.artifactPattern.pattern())
+                && this.artifactPattern.flags() == other.artifactPattern.flags();
+        }
+
+        /**
+         * Extract the version that the artifact pattern captures from a file name
+         *
+         * @param fileName Artifact file name
+         * @return Captured version, or null if the pattern doesn't match or has no version group
+         */
+        String captureVersion(final String fileName) {
+            if (!this.artifactPattern.pattern().contains("(?<" + VERSION_GROUP + ">")) {
+                return null;
+            }
+            final Matcher matcher = this.artifactPattern.matcher(fileName);
+            return matcher.matches() ? matcher.group(VERSION_GROUP) : null;
+        }
     }
 
 }
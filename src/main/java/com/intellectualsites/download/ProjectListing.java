@@ -33,21 +33,119 @@ import xyz.kvantum.server.api.response.Response;
 import xyz.kvantum.server.api.util.KvantumJsonFactory;
 import xyz.kvantum.server.api.util.MapBuilder;
 import xyz.kvantum.server.api.views.annotatedviews.ViewMatcher;
-import xyz.kvantum.server.api.views.annotatedviews.converters.StandardConverters;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Projects use the following format
- * /project/version/type/build/target
+ * /project/target/type/build/version
  * <p>
- * An example being the latest release build of PlotSquared 4.0 for Bukkit:
- * /PlotSquared/4/release/latest/bukkit
+ * An example being the latest release build of PlotSquared 1.13+ for Bukkit:
+ * /plotsquared/new/release/latest/bukkit
+ * <p>
+ * Appending /download to a version path downloads its artifact. Any path may
+ * be requested with ?depth=N to include N levels of children, /_all
+ * returns the entire catalog and /_changes reports catalog changes. Paths
+ * that start with an underscore are reserved for service endpoints, such as
+ * /_health and /_metrics, and so are path segments that start with one,
+ * such as /plotsquared/new/release/_find
  */
-@SuppressWarnings("unused") @RequiredArgsConstructor public class ProjectListing extends Node<Project> {
+@SuppressWarnings("unused") public class ProjectListing extends Node<Project> {
+
+    private static final int MAX_DEPTH = 5;
+    private static final String[] PATH_VARIABLES = new String[] {"project", "target", "type", "build", "version", "action"};
+    private static final Set<String> UNLIMITED_ENDPOINTS = Set.of("_health", "_metrics");
+    private static final Set<String> ENDPOINTS = Set.of("_health", "_hook", "_metrics", "_all", "_find", "_changes", "_update", "_stats");
+
+    private final ArtifactMirror artifactMirror;
+    private final Refresher refresher;
+    private final VersionIndex versionIndex;
+    private final ChangeFeed changeFeed;
+    private final DownloadStats downloadStats;
+    private final RateLimiter rateLimiter;
+    private volatile Map<String, Project> projects;
+    private volatile PathIndex pathIndex;
+    private volatile Tree tree;
+
+    /**
+     * Create a new listing
+     *
+     * @param projects       Projects by identifier
+     * @param artifactMirror Mirror that downloads are served from, or null to
+     *                       always redirect to Jenkins
+     * @param refresher      Refresher used by build notification hooks
+     * @param versionIndex   Index of the versions of all projects
+     * @param changeFeed     Feed of catalog changes
+     * @param downloadStats  Download counters
+     * @param rateLimiter    Per-client rate limiter, or null to not limit clients
+     */
+    ProjectListing(final Map<String, Project> projects, final ArtifactMirror artifactMirror,
+        final Refresher refresher, final VersionIndex versionIndex, final ChangeFeed changeFeed,
+        final DownloadStats downloadStats, final RateLimiter rateLimiter) {
+        this.projects = projects;
+        this.artifactMirror = artifactMirror;
+        this.refresher = refresher;
+        this.versionIndex = versionIndex;
+        this.changeFeed = changeFeed;
+        this.downloadStats = downloadStats;
+        this.rateLimiter = rateLimiter;
+        this.pathIndex = new PathIndex(this, projects.values());
+        this.serialize();
+    }
 
-    private final Map<String, Project> projects;
+    /**
+     * Replace the listed projects, after a schema has been reloaded
+     *
+     * @param projects Projects by identifier
+     */
+    void setProjects(final Map<String, Project> projects) {
+        this.projects = projects;
+        this.pathIndex = new PathIndex(this, projects.values());
+        this.serialize();
+        this.invalidateTree();
+    }
+
+    /**
+     * Drop the encoded catalog tree, after builds have changed
+     */
+    void invalidateTree() {
+        this.tree = null;
+    }
+
+    /**
+     * Get the encoded catalog tree at full depth. It is re-encoded once the
+     * projects or the builds of any type have changed, including when a type
+     * only went stale
+     */
+    private Payload getTreePayload() {
+        final List<Project.Type.Snapshot> snapshots = new ArrayList<>();
+        for (final Project project : this.projects.values()) {
+            for (final Project.Type type : project.getTypes()) {
+                snapshots.add(type.getSnapshot());
+            }
+        }
+        final Tree tree = this.tree;
+        if (tree != null && tree.isCurrent(snapshots)) {
+            return tree.payload;
+        }
+        final StringBuilder builder = new StringBuilder("{\"status\":\"success\",\"tree\":");
+        this.writeTree(builder, MAX_DEPTH);
+        builder.append('}');
+        // Snapshots published while writing only cause another re-encode
+        final Tree encoded = new Tree(new Payload(builder.toString()), snapshots);
+        this.tree = encoded;
+        return encoded.payload;
+    }
 
     private JSONObject generateUnknown(final String key, final String value) {
         return KvantumJsonFactory.toJSONObject(
@@ -63,153 +161,577 @@ import java.util.Objects;
         return response;
     }
 
-    private JSONObject generateSuccess(final JSONObject object) {
-        object.put("status", "success");
-        return object;
+    private Response generateUnknownResponse(final String key, final String value) {
+        return generateJSONResponse(generateUnknown(key, value).toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write a pre-encoded payload, or 304 Not Modified if the client already has it
+     */
+    private Response generateJSONResponse(final AbstractRequest request, final Payload payload) {
+        final Response response = new Response();
+        response.getHeader().set(Header.HEADER_ETAG, payload.getEntityTag())
+            .set(Header.HEADER_LAST_MODIFIED, payload.getLastModifiedHeader())
+            .set(Header.HEADER_CACHE_CONTROL, "no-cache");
+        if (payload.isNotModified(request.getHeader("If-None-Match"), request.getHeader("If-Modified-Since"))) {
+            response.getHeader().setStatus(Header.STATUS_NOT_MODIFIED);
+            response.setResponse(new byte[0]);
+            Metrics.recordNotModified();
+            return response;
+        }
+        response.getHeader().set(Header.HEADER_CONTENT_TYPE, Header.CONTENT_TYPE_JSON);
+        response.setResponse(payload.getBytes());
+        return response;
     }
 
-    @ViewMatcher(filter = "download/api", httpMethod = HttpMethod.ALL, outputType = StandardConverters.JSON)
-    public JSONObject onRoot(final AbstractRequest request) {
-        return generateSuccess(this.toJSON());
+    private Response generateJSONResponse(final byte[] payload) {
+        final Response response = new Response();
+        response.getHeader().set(Header.HEADER_CONTENT_TYPE, Header.CONTENT_TYPE_JSON);
+        response.setResponse(payload);
+        return response;
     }
 
-    @ViewMatcher(filter = "download/api/<project>", httpMethod = HttpMethod.ALL, outputType = StandardConverters.JSON)
-    public JSONObject onProject(final AbstractRequest request) {
-        final String projectName = Objects.requireNonNull(request.get("project")).toString();
-        final Project project = getChild(projectName);
-        if (project == null) {
-            return generateUnknown("project", projectName);
+    @ViewMatcher(filter = "download/api/[project]/[target]/[type]/[build]/[version]/[action]", httpMethod = HttpMethod.ALL)
+    public Response onRequest(final AbstractRequest request) {
+        final long start = System.nanoTime();
+        final StringBuilder pathBuilder = new StringBuilder();
+        int segments = 0;
+        String action = null;
+        for (int i = 0; i < PATH_VARIABLES.length; i++) {
+            final Object segment = request.get(PATH_VARIABLES[i]);
+            if (segment == null) {
+                break;
+            }
+            if (i == PATH_VARIABLES.length - 1) {
+                action = segment.toString();
+            } else {
+                if (i > 0) {
+                    pathBuilder.append('/');
+                }
+                pathBuilder.append(segment);
+            }
+            segments++;
+        }
+        final String path = pathBuilder.toString();
+        final long wait = this.acquire(request, path, action);
+        final Response response = wait > 0 ? generateRateLimitedResponse(wait) : this.onRequest(request, path, action);
+        final String endpoint;
+        final int separator = path.lastIndexOf('/');
+        if (segments == 0) {
+            endpoint = "root";
+        } else if (path.charAt(0) == '_') {
+            final int end = path.indexOf('/');
+            final String name = end == -1 ? path : path.substring(0, end);
+            endpoint = ENDPOINTS.contains(name) ? name : "unknown";
+        } else if (action == null && separator != -1 && path.charAt(separator + 1) == '_') {
+            final String name = path.substring(separator + 1);
+            endpoint = ENDPOINTS.contains(name) ? name : "unknown";
+        } else {
+            endpoint = PATH_VARIABLES[segments - 1];
         }
-        return generateSuccess(project.toJSON());
+        Metrics.recordRequest(endpoint, System.nanoTime() - start);
+        return response;
     }
 
-    @ViewMatcher(filter = "download/api/<project>/<target>", httpMethod = HttpMethod.ALL, outputType = StandardConverters.JSON)
-    public JSONObject onTarget(final AbstractRequest request) {
-        final String projectName = Objects.requireNonNull(request.get("project")).toString();
-        final Project project = getChild(projectName);
-        if (project == null) {
-            return generateUnknown("project", projectName);
+    /**
+     * Take a token from the bucket of the client. Downloads and catalog
+     * requests are limited separately, and monitoring isn't limited at all.
+     * Build notifications count as catalog requests, so that their token
+     * can't be guessed at full speed
+     *
+     * @return 0 if the request may proceed, otherwise the nanoseconds until it may be retried
+     */
+    private long acquire(final AbstractRequest request, final String path, final String action) {
+        if (this.rateLimiter == null) {
+            return 0L;
+        }
+        if (!path.isEmpty() && path.charAt(0) == '_') {
+            final int separator = path.indexOf('/');
+            if (UNLIMITED_ENDPOINTS.contains(separator == -1 ? path : path.substring(0, separator))) {
+                return 0L;
+            }
+        }
+        String client = null;
+        if (DownloadServiceConfig.RateLimit.trustForwardedFor) {
+            final String forwardedFor = request.getHeader("X-Forwarded-For");
+            if (forwardedFor != null && !forwardedFor.trim().isEmpty()) {
+                // The proxy appends the address it received the request from
+                client = forwardedFor.substring(forwardedFor.lastIndexOf(',') + 1).trim();
+            }
+        }
+        if (client == null) {
+            client = request.getSocket().getIP();
+        }
+        if (action != null) {
+            final long wait = this.rateLimiter.acquireDownload(client);
+            if (wait > 0) {
+                Metrics.recordRateLimited("download");
+            }
+            return wait;
         }
-        final String targetName = Objects.requireNonNull(request.get("target")).toString();
-        final Project.Target target = project.getChild(targetName);
-        if (target == null) {
-            return generateUnknown("target", targetName);
+        final long wait = this.rateLimiter.acquireRequest(client);
+        if (wait > 0) {
+            Metrics.recordRateLimited("request");
         }
-        return generateSuccess(target.toJSON());
+        return wait;
     }
 
-    @ViewMatcher(filter = "download/api/<project>/<target>/<type>", httpMethod = HttpMethod.ALL, outputType = StandardConverters.JSON)
-    public JSONObject onType(final AbstractRequest request) {
-        final String projectName = Objects.requireNonNull(request.get("project")).toString();
-        final Project project = getChild(projectName);
-        if (project == null) {
-            return generateUnknown("project", projectName);
+    private static Response generateRateLimitedResponse(final long wait) {
+        final long seconds = Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(wait + TimeUnit.SECONDS.toNanos(1) - 1));
+        final Response response = new Response();
+        response.getHeader().setStatus(Header.STATUS_TOO_MANY_REQUESTS)
+            .set(Header.HEADER_CONTENT_TYPE, Header.CONTENT_TYPE_JSON)
+            .set("Retry-After", Long.toString(seconds));
+        response.setResponse(("{\"status\":\"rate_limited\",\"retry_after\":" + seconds + "}")
+            .getBytes(StandardCharsets.UTF_8));
+        return response;
+    }
+
+    private Response onRequest(final AbstractRequest request, final String path, final String action) {
+        final String depth = request.getQuery().getParameters().get("depth");
+        if (path.isEmpty()) {
+            if (depth != null) {
+                return this.generateTreeResponse(this, depth);
+            }
+            return generateJSONResponse(request, this.getPayload());
+        }
+        if (path.charAt(0) == '_') {
+            return this.onEndpoint(request, path);
         }
-        final String targetName = Objects.requireNonNull(request.get("target")).toString();
-        final Project.Target target = project.getChild(targetName);
-        if (target == null) {
-            return generateUnknown("target", targetName);
+        final int separator = path.lastIndexOf('/');
+        if (action == null && separator != -1 && path.charAt(separator + 1) == '_') {
+            return this.onNodeEndpoint(request, path.substring(0, separator), path.substring(separator + 1));
         }
-        final String typeName = Objects.requireNonNull(request.get("type")).toString();
-        final Project.Type type = target.getChild(typeName);
-        if (type == null) {
-            return generateUnknown("type", targetName);
+        final PathIndex.Resolution resolution = this.pathIndex.resolve(path);
+        if (action != null) {
+            if (!"download".equals(action)) {
+                return generateUnknown404("action", action);
+            }
+            if (resolution.getNode() == null) {
+                return generateUnknown404(resolution.getUnknownType(), resolution.getUnknownValue());
+            }
+            return this.onDownload(request, (Project.Type.Version) resolution.getNode());
         }
-        return generateSuccess(type.toJSON());
+        if (resolution.getNode() == null) {
+            return generateUnknownResponse(resolution.getUnknownType(), resolution.getUnknownValue());
+        }
+        if (depth != null) {
+            return this.generateTreeResponse(resolution.getNode(), depth);
+        }
+        return generateJSONResponse(request, resolution.getNode().getPayload());
     }
 
-    @ViewMatcher(filter = "download/api/<project>/<target>/<type>/<build>", httpMethod = HttpMethod.ALL, outputType = StandardConverters.JSON)
-    public JSONObject onBuild(final AbstractRequest request) {
-        final String projectName = Objects.requireNonNull(request.get("project")).toString();
-        final Project project = getChild(projectName);
-        if (project == null) {
-            return generateUnknown("project", projectName);
+    /**
+     * Write a node together with its children, down to the requested depth
+     */
+    private Response generateTreeResponse(final Node<?> node, final String depth) {
+        int levels;
+        try {
+            levels = Integer.parseInt(depth);
+        } catch (final NumberFormatException e) {
+            levels = MAX_DEPTH;
         }
-        final String targetName = Objects.requireNonNull(request.get("target")).toString();
-        final Project.Target target = project.getChild(targetName);
-        if (target == null) {
-            return generateUnknown("target", targetName);
+        final StringBuilder builder = new StringBuilder("{\"status\":\"success\",\"tree\":");
+        node.writeTree(builder, Math.max(0, Math.min(MAX_DEPTH, levels)));
+        builder.append('}');
+        return generateJSONResponse(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Handle requests to service endpoints, which are prefixed by an underscore
+     * so that they can't collide with project identifiers
+     */
+    private Response onEndpoint(final AbstractRequest request, final String path) {
+        final int separator = path.indexOf('/');
+        switch (separator == -1 ? path : path.substring(0, separator)) {
+            case "_health":
+                return this.onHealth(request);
+            case "_hook":
+                return this.onHook(request, separator == -1 ? "" : path.substring(separator + 1));
+            case "_metrics": {
+                final Response response = new Response();
+                response.getHeader().set(Header.HEADER_CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+                response.setResponse(Metrics.scrape(this.projects.values()).getBytes(StandardCharsets.UTF_8));
+                return response;
+            }
+            case "_find":
+                return this.onFind(request);
+            case "_changes":
+                return this.onChanges(request);
+            case "_all": {
+                final String depth = request.getQuery().getParameters().get("depth");
+                if (depth == null || Integer.toString(MAX_DEPTH).equals(depth)) {
+                    return generateJSONResponse(request, this.getTreePayload());
+                }
+                return this.generateTreeResponse(this, depth);
+            }
+            default:
+                return generateUnknownResponse("endpoint", path);
         }
-        final String typeName = Objects.requireNonNull(request.get("type")).toString();
-        final Project.Type type = target.getChild(typeName);
-        if (type == null) {
-            return generateUnknown("type", targetName);
+    }
+
+    /**
+     * Handle requests to endpoints of a catalog node, which are appended to
+     * its path prefixed by an underscore
+     */
+    private Response onNodeEndpoint(final AbstractRequest request, final String path, final String endpoint) {
+        final PathIndex.Resolution resolution = this.pathIndex.resolve(path);
+        if (resolution.getNode() == null) {
+            return generateUnknownResponse(resolution.getUnknownType(), resolution.getUnknownValue());
+        }
+        if (resolution.getNode() instanceof Project && "_stats".equals(endpoint)) {
+            return this.onStats(request, (Project) resolution.getNode());
         }
-        final String buildName = Objects.requireNonNull(request.get("build")).toString();
-        final Project.Type.Build build = type.getChild(buildName);
-        if (build == null) {
-            return generateUnknown("build", buildName);
+        if (resolution.getNode() instanceof Project.Type) {
+            switch (endpoint) {
+                case "_find":
+                    return this.onFind(request, (Project.Type) resolution.getNode());
+                case "_update":
+                    return this.onUpdate(request, (Project.Type) resolution.getNode());
+                default:
+                    break;
+            }
         }
-        return generateSuccess(build.toJSON());
+        return generateUnknownResponse("endpoint", endpoint);
     }
 
-    @ViewMatcher(filter = "download/api/<project>/<target>/<type>/<build>/<version>", httpMethod = HttpMethod.ALL, outputType = StandardConverters.JSON)
-    public JSONObject onVersion(final AbstractRequest request) {
-        final String projectName = Objects.requireNonNull(request.get("project")).toString();
-        final Project project = getChild(projectName);
-        if (project == null) {
-            return generateUnknown("project", projectName);
+    /**
+     * Look up the build of a type that produced a version, either by the
+     * exact version or as the newest version matching a pattern such as 4.*.
+     * Without either, the entire version index of the type is listed
+     */
+    private Response onFind(final AbstractRequest request, final Project.Type type) {
+        final Project.Type.Snapshot snapshot = type.getSnapshot();
+        final Map<String, String> parameters = request.getQuery().getParameters();
+        final String version = parameters.get("version");
+        final String pattern = parameters.get("latest_matching");
+        if (version == null && pattern == null) {
+            final Map<String, Object> versions = new TreeMap<>(VersionIndex.ORDER);
+            snapshot.getIndex().forEach((key, build) -> versions.put(key, snapshot.getBuildIdentifier(build)));
+            return generateJSONResponse(KvantumJsonFactory.toJSONObject(
+                MapBuilder.<String, Object>newHashMap().put("status", "success")
+                    .put("versions", versions).get()).toJSONString().getBytes(StandardCharsets.UTF_8));
         }
-        final String targetName = Objects.requireNonNull(request.get("target")).toString();
-        final Project.Target target = project.getChild(targetName);
-        if (target == null) {
-            return generateUnknown("target", targetName);
+        final Map.Entry<String, Integer> match;
+        if (version != null) {
+            final Integer build = snapshot.getIndex().get(version);
+            match = build == null ? null : Map.entry(version, build);
+        } else {
+            try {
+                match = VersionIndex.latestMatching(snapshot.getIndex(), pattern);
+            } catch (final IllegalArgumentException e) {
+                return generateUnknownResponse("pattern", pattern);
+            }
         }
-        final String typeName = Objects.requireNonNull(request.get("type")).toString();
-        final Project.Type type = target.getChild(typeName);
-        if (type == null) {
-            return generateUnknown("type", typeName);
+        if (match == null) {
+            return generateUnknownResponse("version", version == null ? pattern : version);
         }
-        final String buildName = Objects.requireNonNull(request.get("build")).toString();
-        final Project.Type.Build build = type.getChild(buildName);
-        if (build == null) {
-            return generateUnknown("build", buildName);
+        final String build = snapshot.getBuildIdentifier(match.getValue());
+        return generateJSONResponse(KvantumJsonFactory.toJSONObject(
+            MapBuilder.<String, Object>newHashMap().put("status", "success").put("version", match.getKey())
+                .put("build", build).put("path", type.getPath() + "/" + build).get()).toJSONString()
+            .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Download counts of a project, with daily counts for the last ?days=
+     * days, 30 by default
+     */
+    private Response onStats(final AbstractRequest request, final Project project) {
+        int days = 30;
+        try {
+            days = Integer.parseInt(request.getQuery().getParameters().getOrDefault("days", ""));
+        } catch (final NumberFormatException ignored) {
         }
-        final String versionName = Objects.requireNonNull(request.get("version")).toString();
-        final Project.Type.Version version = build.getChild(versionName);
+        return generateJSONResponse(KvantumJsonFactory.toJSONObject(
+            this.downloadStats.summarize(project.getIdentifier(), Math.max(1, Math.min(366, days)))).toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Update check. Answers whether a newer build than ?current= has the
+     * version ?version=, from answers encoded whenever the builds change
+     */
+    private Response onUpdate(final AbstractRequest request, final Project.Type type) {
+        final Map<String, String> parameters = request.getQuery().getParameters();
+        final String version = parameters.get("version");
         if (version == null) {
-            return generateUnknown("version", versionName);
+            return generateUnknownResponse("query", "version");
+        }
+        final String current = parameters.get("current");
+        if (current == null) {
+            return generateUnknownResponse("query", "current");
+        }
+        final Project.Type.Update update = type.getSnapshot().getUpdate(version);
+        if (update == null) {
+            return generateUnknownResponse("version", version);
+        }
+        try {
+            return generateJSONResponse(request, update.answer(Integer.parseInt(current)));
+        } catch (final NumberFormatException e) {
+            return generateUnknownResponse("current", current);
         }
-        return generateSuccess(version.toJSON());
     }
 
-    @ViewMatcher(filter = "download/api/<project>/<target>/<type>/<build>/<version>/download", httpMethod = HttpMethod.ALL)
-    public Response onDownload(final AbstractRequest request) {
-        final String projectName = Objects.requireNonNull(request.get("project")).toString();
-        final Project project = getChild(projectName);
-        if (project == null) {
-            return generateUnknown404("project", projectName);
+    /**
+     * Look up the builds of all types that produced a version, either by the
+     * exact version or as the newest version matching a pattern such as 4.*
+     */
+    private Response onFind(final AbstractRequest request) {
+        final Map<String, String> parameters = request.getQuery().getParameters();
+        final String version = parameters.get("version");
+        final String pattern = parameters.get("latest_matching");
+        final Map.Entry<String, Map<String, String>> match;
+        if (version != null) {
+            final Map<String, String> builds = this.versionIndex.find(version);
+            match = builds.isEmpty() ? null : Map.entry(version, builds);
+        } else if (pattern != null) {
+            try {
+                match = this.versionIndex.findLatest(pattern);
+            } catch (final IllegalArgumentException e) {
+                return generateUnknownResponse("pattern", pattern);
+            }
+        } else {
+            return generateUnknownResponse("query", "version");
         }
-        final String targetName = Objects.requireNonNull(request.get("target")).toString();
-        final Project.Target target = project.getChild(targetName);
-        if (target == null) {
-            return generateUnknown404("target", targetName);
+        if (match == null) {
+            return generateUnknownResponse("version", version == null ? pattern : version);
         }
-        final String typeName = Objects.requireNonNull(request.get("type")).toString();
-        final Project.Type type = target.getChild(typeName);
-        if (type == null) {
-            return generateUnknown404("type", typeName);
+        return generateJSONResponse(KvantumJsonFactory.toJSONObject(
+            MapBuilder.<String, Object>newHashMap().put("status", "success").put("version", match.getKey())
+                .put("builds", match.getValue()).get()).toJSONString()
+            .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Change feed. Clients pass the sequence number of the last event they
+     * have seen as ?since=, and receive the newer events right away, along
+     * with the number of seconds to wait before polling again. Requests are
+     * never held open, as that would tie up a server worker per client.
+     * Without ?since= only the current sequence number is returned. Clients
+     * that accept text/event-stream receive the same batch in the event
+     * stream format, so that an EventSource polls the feed by reconnecting
+     * with the Last-Event-ID header
+     */
+    private Response onChanges(final AbstractRequest request) {
+        final Map<String, String> parameters = request.getQuery().getParameters();
+        final String accept = request.getHeader("Accept");
+        final String lastEventId = request.getHeader("Last-Event-ID");
+        final boolean stream = lastEventId != null || (accept != null && accept.contains("text/event-stream"));
+        final String since = lastEventId != null ? lastEventId : parameters.get("since");
+        final ChangeFeed.Batch batch;
+        if (since == null) {
+            batch = this.changeFeed.read(this.changeFeed.getSequence());
+        } else {
+            try {
+                batch = this.changeFeed.read(Long.parseLong(since.trim()));
+            } catch (final NumberFormatException e) {
+                return generateUnknownResponse("since", since);
+            }
         }
-        final String buildName = Objects.requireNonNull(request.get("build")).toString();
-        final Project.Type.Build build = type.getChild(buildName);
-        if (build == null) {
-            return generateUnknown404("build", buildName);
+        final int retry = Math.max(1, DownloadServiceConfig.Changes.retry);
+        final Response response = new Response();
+        response.getHeader().set(Header.HEADER_CACHE_CONTROL, "no-cache");
+        final StringBuilder builder = new StringBuilder();
+        if (stream) {
+            response.getHeader().set(Header.HEADER_CONTENT_TYPE, "text/event-stream; charset=utf-8");
+            builder.append("retry: ").append(TimeUnit.SECONDS.toMillis(retry)).append("\n\n");
+            if (batch.isReset()) {
+                builder.append("id: ").append(batch.getSequence()).append("\nevent: reset\ndata: {\"seq\":")
+                    .append(batch.getSequence()).append("}\n\n");
+            } else if (since == null) {
+                builder.append("id: ").append(batch.getSequence()).append("\n\n");
+            }
+            for (final ChangeFeed.Event event : batch.getEvents()) {
+                builder.append(event.getFrame());
+            }
+        } else {
+            response.getHeader().set(Header.HEADER_CONTENT_TYPE, Header.CONTENT_TYPE_JSON);
+            builder.append("{\"status\":\"success\",\"seq\":").append(batch.getSequence())
+                .append(",\"reset\":").append(batch.isReset()).append(",\"retry_after\":").append(retry)
+                .append(",\"events\":[");
+            for (int i = 0; i < batch.getEvents().size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(batch.getEvents().get(i).getJson());
+            }
+            builder.append("]}");
         }
-        final String versionName = Objects.requireNonNull(request.get("version")).toString();
-        final Project.Type.Version version = build.getChild(versionName);
-        if (version == null) {
-            return generateUnknown404("version", versionName);
+        response.setResponse(builder.toString().getBytes(StandardCharsets.UTF_8));
+        return response;
+    }
+
+    /**
+     * Reports the load state of every type. The response status is only 200
+     * once no type is still loading, so that it can be used for readiness checks
+     */
+    private Response onHealth(final AbstractRequest request) {
+        boolean ready = true;
+        final Map<String, Object> types = new TreeMap<>();
+        for (final Project project : this.projects.values()) {
+            for (final Project.Type type : project.getTypes()) {
+                final Project.LoadState loadState = type.getLoadState();
+                if (loadState == Project.LoadState.LOADING) {
+                    ready = false;
+                }
+                types.put(type.getPath(), loadState.name().toLowerCase());
+            }
+        }
+        final Response response = generateJSONResponse(KvantumJsonFactory.toJSONObject(
+            MapBuilder.<String, Object>newHashMap().put("status", ready ? "ready" : "loading").put("live", true)
+                .put("types", KvantumJsonFactory.toJSONObject(types)).get()).toJSONString().getBytes(StandardCharsets.UTF_8));
+        if (!ready) {
+            response.getHeader().setStatus(Header.STATUS_SERVICE_UNAVAILABLE);
+        }
+        return response;
+    }
+
+    /**
+     * Build notification hook, called by Jenkins once a build completes. Either
+     * _hook/project/target/type or _hook?job=job_name refreshes the matching
+     * types. Notifications arriving within the debounce window share one refresh
+     */
+    private Response onHook(final AbstractRequest request, final String path) {
+        final Map<String, String> parameters = request.getQuery().getParameters();
+        String token = parameters.get("token");
+        final String authorization = request.getHeader("Authorization");
+        if (token == null && authorization != null && authorization.startsWith("Bearer ")) {
+            token = authorization.substring("Bearer ".length());
+        }
+        if (DownloadServiceConfig.Hooks.token.isEmpty() || token == null || !MessageDigest.isEqual(
+            DownloadServiceConfig.Hooks.token.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            final Response response = generateJSONResponse("{\"status\":\"unauthorized\"}".getBytes(StandardCharsets.UTF_8));
+            response.getHeader().setStatus(Header.STATUS_UNAUTHORIZED);
+            return response;
+        }
+        final List<Project.Type> types = new ArrayList<>();
+        if (!path.isEmpty()) {
+            final PathIndex.Resolution resolution = this.pathIndex.resolve(path);
+            if (resolution.getNode() == null) {
+                return generateUnknownResponse(resolution.getUnknownType(), resolution.getUnknownValue());
+            }
+            if (!(resolution.getNode() instanceof Project.Type)) {
+                return generateUnknownResponse("type", path);
+            }
+            types.add((Project.Type) resolution.getNode());
+        } else {
+            final String job = parameters.get("job");
+            for (final Project project : this.projects.values()) {
+                for (final Project.Type type : project.getTypes()) {
+                    if (type.getJobName().equals(job)) {
+                        types.add(type);
+                    }
+                }
+            }
+            if (types.isEmpty()) {
+                return generateUnknownResponse("job", String.valueOf(job));
+            }
+        }
+        final long delay = TimeUnit.SECONDS.toMillis(DownloadServiceConfig.Hooks.debounce);
+        final List<String> paths = new ArrayList<>();
+        for (final Project.Type type : types) {
+            this.refresher.refresh(type, delay);
+            paths.add(type.getPath());
         }
+        // Answer right away, waiting for the refresh would hold a server worker
+        final Response response = generateJSONResponse(KvantumJsonFactory.toJSONObject(
+            MapBuilder.<String, Object>newHashMap().put("status", "accepted")
+                .put("types", KvantumJsonFactory.toJsonArray(paths)).get()).toJSONString().getBytes(StandardCharsets.UTF_8));
+        response.getHeader().setStatus(Header.STATUS_ACCEPTED);
+        return response;
+    }
+
+    private Response onDownload(final AbstractRequest request, final Project.Type.Version version) {
+        // Resumed downloads are only counted once
+        final String range = request.getHeader("Range");
+        if (range == null || range.trim().startsWith("bytes=0-")) {
+            final String build = request.get("build").toString();
+            this.downloadStats.record(version,
+                "latest".equals(build) ? version.getType().getSnapshot().getLatest() : Integer.parseInt(build));
+        }
+        if (this.artifactMirror != null) {
+            final ArtifactMirror.Artifact artifact = this.artifactMirror.get(version.getDownloadUrl());
+            if (artifact != null && artifact.getSize() <= Integer.MAX_VALUE) {
+                try {
+                    final Response response = generateArtifactResponse(version, artifact, range);
+                    Metrics.recordDownload(version, "mirror");
+                    return response;
+                } catch (final IOException e) {
+                    e.printStackTrace(); // Evicted while reading, fall back to Jenkins
+                }
+            }
+        }
+        Metrics.recordDownload(version, "jenkins");
         final Response response = new Response();
         response.getHeader().setStatus(Header.STATUS_TEMPORARY_REDIRECT)
             .set(Header.HEADER_LOCATION, version.getDownloadUrl());
         return response;
     }
 
+    /**
+     * Serve a mirrored artifact, or the single byte range of it that was requested
+     */
+    private Response generateArtifactResponse(final Project.Type.Version version,
+        final ArtifactMirror.Artifact artifact, final String range) throws IOException {
+        final long size = artifact.getSize();
+        long first = 0;
+        long last = size - 1;
+        final Response response = new Response();
+        response.getHeader().set(Header.HEADER_ACCEPT_RANGES, "bytes")
+            .set(Header.HEADER_CONTENT_TYPE, Header.CONTENT_TYPE_OCTET_STREAM)
+            .set(Header.HEADER_CONTENT_DISPOSITION, "attachment; filename=\"" + version.getFileName() + "\"");
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') == -1) {
+            final String[] bounds = range.substring("bytes=".length()).trim().split("-", 2);
+            try {
+                if (bounds[0].isEmpty()) { // Suffix range
+                    first = Math.max(0, size - Long.parseLong(bounds[1]));
+                } else {
+                    first = Long.parseLong(bounds[0]);
+                    if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                        last = Math.min(last, Long.parseLong(bounds[1]));
+                    }
+                }
+            } catch (final NumberFormatException e) {
+                first = 0;
+                last = size - 1;
+            }
+            if (first > last) {
+                response.getHeader().setStatus(Header.STATUS_RANGE_NOT_SATISFIABLE)
+                    .set(Header.HEADER_CONTENT_RANGE, "bytes */" + size);
+                response.setResponse(new byte[0]);
+                return response;
+            }
+            response.getHeader().setStatus(Header.STATUS_PARTIAL_CONTENT)
+                .set(Header.HEADER_CONTENT_RANGE, "bytes " + first + "-" + last + "/" + size);
+        }
+        response.setResponse(this.artifactMirror.read(artifact, first, (int) (last - first + 1)));
+        return response;
+    }
+
     @Override protected String getIdentifier() {
         return "projects";
     }
 
+    /**
+     * Encoded catalog tree, together with the snapshots it was encoded from
+     */
+    @RequiredArgsConstructor private static final class Tree {
+        private final Payload payload;
+        private final List<Project.Type.Snapshot> snapshots;
+
+        private boolean isCurrent(final List<Project.Type.Snapshot> snapshots) {
+            if (snapshots.size() != this.snapshots.size()) {
+                return false;
+            }
+            for (int i = 0; i < snapshots.size(); i++) {
+                if (snapshots.get(i) != this.snapshots.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     @Override protected String getDisplayName() {
         return this.getIdentifier();
     }
@@ -223,4 +745,12 @@ import java.util.Objects;
     @Override protected Project getChild(final String key) {
         return this.projects.get(key);
     }
+
+    @Override protected Collection<Project> getChildren() {
+        return Collections.unmodifiableCollection(this.projects.values());
+    }
+
+    @Override protected String getChildrenName() {
+        return "projects";
+    }
 }
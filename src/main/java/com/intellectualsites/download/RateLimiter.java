@@ -0,0 +1,139 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client token buckets, one for catalog requests and one for downloads.
+ * Each client is tracked by the single time at which its bucket will be full
+ * again (the generic cell rate algorithm), which is updated with a
+ * compare-and-set, so taking a token never locks. A client whose bucket is
+ * full carries no state, so it is evicted once that time has passed
+ */
+final class RateLimiter {
+
+    private final Buckets requests;
+    private final Buckets downloads;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create a new rate limiter
+     *
+     * @param requestRate   Catalog requests per minute
+     * @param requestBurst  Catalog requests a client may send at once
+     * @param downloadRate  Downloads per minute
+     * @param downloadBurst Downloads a client may start at once
+     * @param maxClients    Clients tracked at most per bucket. Clients beyond
+     *                      it share a single bucket until idle clients are evicted
+     */
+    RateLimiter(final int requestRate, final int requestBurst, final int downloadRate, final int downloadBurst,
+        final int maxClients) {
+        this.requests = new Buckets(requestRate, requestBurst, maxClients);
+        this.downloads = new Buckets(downloadRate, downloadBurst, maxClients);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "rate-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(() -> {
+            this.requests.evictIdle();
+            this.downloads.evictIdle();
+        }, 1L, 1L, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Take a token for a catalog request
+     *
+     * @param client Client address
+     * @return 0 if the request may proceed, otherwise the nanoseconds until it may be retried
+     */
+    long acquireRequest(final String client) {
+        return this.requests.acquire(client);
+    }
+
+    /**
+     * Take a token for a download
+     *
+     * @param client Client address
+     * @return 0 if the download may proceed, otherwise the nanoseconds until it may be retried
+     */
+    long acquireDownload(final String client) {
+        return this.downloads.acquire(client);
+    }
+
+    void close() {
+        this.scheduler.shutdownNow();
+    }
+
+    private static final class Buckets {
+        private final ConcurrentHashMap<String, AtomicLong> clients = new ConcurrentHashMap<>();
+        private final AtomicLong overflow = new AtomicLong(System.nanoTime());
+        private final long interval;
+        private final long tolerance;
+        private final int maxClients;
+
+        private Buckets(final int rate, final int burst, final int maxClients) {
+            this.interval = TimeUnit.MINUTES.toNanos(1) / Math.max(1, rate);
+            this.tolerance = this.interval * (Math.max(1, burst) - 1);
+            this.maxClients = maxClients;
+        }
+
+        private long acquire(final String client) {
+            final long now = System.nanoTime();
+            AtomicLong full = this.clients.get(client);
+            if (full == null) {
+                if (this.clients.size() >= this.maxClients) {
+                    // Failing open would let a flood of new clients through
+                    full = this.overflow;
+                } else {
+                    // New clients start with a full bucket
+                    full = this.clients.computeIfAbsent(client, key -> new AtomicLong(now));
+                }
+            }
+            while (true) {
+                final long current = full.get();
+                final long start = current - now > 0 ? current : now;
+                final long wait = start - this.tolerance - now;
+                if (wait > 0) {
+                    return wait;
+                }
+                if (full.compareAndSet(current, start + this.interval)) {
+                    return 0L;
+                }
+            }
+        }
+
+        private void evictIdle() {
+            final long now = System.nanoTime();
+            this.clients.values().removeIf(full -> full.get() - now <= 0);
+        }
+    }
+
+}
@@ -0,0 +1,428 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import xyz.kvantum.server.api.logging.Logger;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Refreshes the builds of all types concurrently, using a bounded worker pool
+ * and a per jenkins_base concurrency limit and circuit breaker. Once polling
+ * is enabled, every type is polled on its own interval, which tightens when a
+ * new build is found and backs off exponentially while the job stays idle
+ */
+final class Refresher {
+
+    private final ExecutorService executor;
+    private final int hostConcurrency;
+    private final int failureThreshold;
+    private final long probeInterval;
+    private final Map<String, HostLimit> hostLimits = new ConcurrentHashMap<>();
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private final List<Consumer<Project.Type>> listeners = new CopyOnWriteArrayList<>();
+    private final Map<Project.Type, Trigger> triggers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private volatile long initialInterval;
+    private volatile long minInterval;
+    private volatile long maxInterval;
+
+    /**
+     * @param threads          Worker threads shared by all refreshes
+     * @param hostConcurrency  Concurrent refreshes per jenkins_base
+     * @param failureThreshold Consecutive failed refreshes after which a jenkins_base is considered down
+     * @param probeInterval    Seconds between probes of a jenkins_base that is down
+     */
+    Refresher(final int threads, final int hostConcurrency, final int failureThreshold, final long probeInterval) {
+        final AtomicInteger threadId = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            final Thread thread = new Thread(runnable, "refresher-" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hostConcurrency = Math.max(1, hostConcurrency);
+        this.failureThreshold = failureThreshold;
+        this.probeInterval = probeInterval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "refresh-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Add a listener that is called whenever a refresh has published new builds
+     *
+     * @param listener Listener accepting the changed type
+     */
+    void addListener(final Consumer<Project.Type> listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Poll every type after each of its refreshes. The first poll of a type
+     * happens after the initial interval. A refresh that finds new builds
+     * resets the interval to the minimum, one that doesn't doubles it, up to
+     * the maximum. Every interval is jittered by up to a fifth, so that jobs
+     * don't end up polled in lockstep
+     *
+     * @param initial Initial interval, in seconds
+     * @param min     Interval after new builds were found, in seconds
+     * @param max     Upper bound for the interval of idle jobs, in seconds
+     */
+    void poll(final long initial, final long min, final long max) {
+        this.minInterval = TimeUnit.SECONDS.toMillis(Math.max(1, min));
+        this.maxInterval = Math.max(this.minInterval, TimeUnit.SECONDS.toMillis(max));
+        this.initialInterval = Math.min(this.maxInterval, Math.max(this.minInterval,
+            TimeUnit.SECONDS.toMillis(initial)));
+    }
+
+    /**
+     * Refresh all types in the given projects
+     *
+     * @param projects Projects to refresh
+     * @return Future completed once every type has been refreshed, or failed to
+     */
+    CompletableFuture<Void> refresh(final Collection<Project> projects) {
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (final Project project : projects) {
+            for (final Project.Type type : project.getTypes()) {
+                futures.add(this.refresh(type, 0L));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).whenComplete((result, error) ->
+            log("Refreshed {0} types in {1}ms", futures.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
+    /**
+     * Request a refresh of a single type. Requests are coalesced: while a
+     * refresh is waiting to start, every further request joins it. A type is
+     * never refreshed twice at once, so a refresh requested while another one
+     * is running starts once the running one completes. Types that have
+     * been removed or replaced are not refreshed
+     *
+     * @param type  Type to refresh
+     * @param delay Milliseconds to wait before starting the refresh, allowing
+     *              bursts of requests to be coalesced
+     * @return Future completed once the type has been refreshed. Failures are
+     *         logged, not propagated
+     */
+    CompletableFuture<Void> refresh(final Project.Type type, final long delay) {
+        if (type.isRetired()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final Trigger trigger = this.triggers.computeIfAbsent(type, key -> new Trigger());
+        synchronized (trigger) {
+            if (trigger.pending != null) {
+                return trigger.pending;
+            }
+            final CompletableFuture<Void> pending = new CompletableFuture<>();
+            trigger.pending = pending;
+            this.scheduler.schedule(() -> {
+                final CompletableFuture<Void> running;
+                synchronized (trigger) {
+                    trigger.pending = null;
+                    running = trigger.running;
+                    trigger.running = pending;
+                }
+                running.whenComplete((result, error) -> this.run(type).whenComplete((changed, failure) -> {
+                    this.reschedule(type, trigger, changed);
+                    pending.complete(null);
+                }));
+            }, delay, TimeUnit.MILLISECONDS);
+            return pending;
+        }
+    }
+
+    /**
+     * Stop polling a type that has been removed from its project
+     *
+     * @param type Removed type
+     */
+    void remove(final Project.Type type) {
+        type.retire();
+        final Trigger trigger = this.triggers.remove(type);
+        if (trigger != null) {
+            synchronized (trigger) {
+                trigger.removed = true;
+                if (trigger.poll != null) {
+                    trigger.poll.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand the polling schedule of a type over to the type that replaces it,
+     * after it has adopted its builds. The replacement is polled when the
+     * replaced type would have been, with the same interval. If the replaced
+     * type hasn't completed a refresh yet, the replacement is refreshed now
+     *
+     * @param previous Replaced type
+     * @param type     Replacement
+     */
+    void replace(final Project.Type previous, final Project.Type type) {
+        previous.retire();
+        final Trigger trigger = this.triggers.remove(previous);
+        long interval = 0L;
+        long delay = -1L;
+        if (trigger != null) {
+            synchronized (trigger) {
+                trigger.removed = true;
+                if (trigger.poll != null) {
+                    trigger.poll.cancel(false);
+                    interval = trigger.interval;
+                    delay = Math.max(0L, trigger.poll.getDelay(TimeUnit.MILLISECONDS));
+                }
+            }
+        }
+        if (delay == -1L) {
+            // Not polled, either because polling is disabled or because no refresh has completed yet
+            if (trigger == null || this.maxInterval > 0) {
+                this.refresh(type, 0L);
+            }
+            return;
+        }
+        final Trigger replacement = this.triggers.computeIfAbsent(type, key -> new Trigger());
+        synchronized (replacement) {
+            replacement.interval = interval;
+            try {
+                replacement.poll = this.scheduler.schedule(() -> this.refresh(type, 0L), delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException ignored) {
+                // the refresher has been closed
+            }
+        }
+    }
+
+    /**
+     * Schedule the next poll of a type
+     *
+     * @param changed Whether the refresh found new builds, or null if it was
+     *                skipped because the host is down. Skipped types are polled
+     *                again once the next probe is due, keeping their interval
+     */
+    private void reschedule(final Project.Type type, final Trigger trigger, final Boolean changed) {
+        if (type.isRetired()) {
+            // Drop a trigger created by a refresh that raced with the removal
+            this.triggers.remove(type, trigger);
+            return;
+        }
+        if (this.maxInterval <= 0) {
+            return;
+        }
+        synchronized (trigger) {
+            if (trigger.removed) {
+                return;
+            }
+            final long delay;
+            if (changed == null) {
+                delay = TimeUnit.SECONDS.toMillis(Math.max(1L, this.probeInterval));
+            } else {
+                if (changed) {
+                    trigger.interval = this.minInterval;
+                } else if (trigger.interval == 0) {
+                    trigger.interval = this.initialInterval;
+                } else {
+                    trigger.interval = Math.min(this.maxInterval, trigger.interval * 2);
+                }
+                delay = trigger.interval;
+            }
+            if (trigger.poll != null) {
+                trigger.poll.cancel(false);
+            }
+            final long jitter = delay / 5;
+            try {
+                trigger.poll = this.scheduler.schedule(() -> this.refresh(type, 0L),
+                    delay + ThreadLocalRandom.current().nextLong(-jitter, jitter + 1),
+                    TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException ignored) {
+                // the refresher has been closed
+            }
+        }
+    }
+
+    /**
+     * Refresh a type now
+     *
+     * @return Future completed with whether new builds were found, or with
+     *         null if the refresh was skipped because the host is down
+     */
+    private CompletableFuture<Boolean> run(final Project.Type type) {
+        final String host = type.getProject().getJenkinsBase();
+        final CircuitBreaker circuitBreaker = this.circuitBreakers.computeIfAbsent(host,
+            key -> new CircuitBreaker(this.failureThreshold, this.probeInterval));
+        if (!circuitBreaker.tryAcquire()) {
+            // The host is down, keep serving what we have
+            type.markStale();
+            return CompletableFuture.completedFuture(null);
+        }
+        final HostLimit hostLimit = this.hostLimits.computeIfAbsent(host, key -> new HostLimit(this.hostConcurrency));
+        // Waiting for a permit doesn't hold a worker, so a slow host can't starve the others
+        return hostLimit.acquire().thenComposeAsync(ignored -> {
+            final long start = System.nanoTime();
+            CompletableFuture<Boolean> future;
+            try {
+                future = type.populateBuilds();
+            } catch (final Throwable error) {
+                future = CompletableFuture.failedFuture(error);
+            }
+            return future.whenComplete((changed, error) -> {
+                hostLimit.release();
+                final long nanos = System.nanoTime() - start;
+                final long duration = TimeUnit.NANOSECONDS.toMillis(nanos);
+                Metrics.recordRefresh(type, nanos, error != null);
+                if (error == null) {
+                    log("Refreshed {0} in {1}ms", type.getPath(), duration);
+                    if (circuitBreaker.onSuccess()) {
+                        log("{0} is reachable again, resuming refreshes", host);
+                    }
+                } else {
+                    log("Failed to populate builds for {0} after {1}ms", type.getPath(), duration);
+                    error.printStackTrace();
+                    if (!isUnreachable(error)) {
+                        // The host answered, the job itself is broken or missing
+                        if (circuitBreaker.onSuccess()) {
+                            log("{0} is reachable again, resuming refreshes", host);
+                        }
+                    } else if (circuitBreaker.onFailure()) {
+                        log("{0} is unreachable, pausing refreshes and probing it every {1}s", host,
+                            this.probeInterval);
+                    }
+                }
+            });
+        }, this.executor).thenApply(changed -> {
+            // A replaced type must not overwrite what listeners keep for its replacement
+            if (Boolean.TRUE.equals(changed) && !type.isRetired()) {
+                for (final Consumer<Project.Type> listener : this.listeners) {
+                    listener.accept(type);
+                }
+            }
+            return changed;
+        }).exceptionally(error -> false);
+    }
+
+    void close() {
+        this.scheduler.shutdownNow();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Limits the concurrent refreshes of a single jenkins_base. Unlike a
+     * semaphore, waiting for a permit doesn't block a thread
+     */
+    private static final class HostLimit {
+        private final Deque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+        private int available;
+
+        private HostLimit(final int permits) {
+            this.available = permits;
+        }
+
+        private synchronized CompletableFuture<Void> acquire() {
+            if (this.available > 0) {
+                this.available--;
+                return CompletableFuture.completedFuture(null);
+            }
+            final CompletableFuture<Void> future = new CompletableFuture<>();
+            this.waiting.add(future);
+            return future;
+        }
+
+        private void release() {
+            final CompletableFuture<Void> next;
+            synchronized (this) {
+                next = this.waiting.poll();
+                if (next == null) {
+                    this.available++;
+                    return;
+                }
+            }
+            next.complete(null); // The permit is handed over directly
+        }
+    }
+
+    /**
+     * Refresh state of a single type
+     */
+    private static final class Trigger {
+        private boolean removed;
+        private long interval;
+        private ScheduledFuture<?> poll;
+        private CompletableFuture<Void> pending;
+        private CompletableFuture<Void> running = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Check whether a refresh failed because its host couldn't be reached or
+     * didn't answer in time, rather than because of the job it refreshed
+     */
+    private static boolean isUnreachable(final Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException
+                || cause instanceof ConnectException || cause instanceof NoRouteToHostException
+                || cause instanceof UnknownHostException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    private static void log(final String message, final Object... arguments) {
+        try {
+            Logger.info(message, arguments);
+        } catch (final NullPointerException e) {
+            System.out.println(MessageFormat.format(message, arguments));
+        }
+    }
+
+}
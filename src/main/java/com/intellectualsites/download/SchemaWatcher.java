@@ -0,0 +1,128 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the projects folder for schema files that are created, modified or
+ * deleted. Editors tend to write a file in several steps, so a change is only
+ * reported once the file has been left alone for a short while
+ */
+final class SchemaWatcher {
+
+    private static final long QUIET_MILLIS = 500L;
+
+    private final Path folder;
+    private final Consumer<Path> listener;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @param folder   Folder to watch
+     * @param listener Listener accepting the path of every changed schema file,
+     *                 which no longer exists if the schema was deleted
+     */
+    SchemaWatcher(final Path folder, final Consumer<Path> listener) throws IOException {
+        this.folder = folder;
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        folder.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+        this.thread = new Thread(this::run, "schema-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    void close() {
+        try {
+            this.watchService.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() {
+        // Changed files, by the time they last changed
+        final Map<Path, Long> changed = new HashMap<>();
+        try {
+            while (true) {
+                final WatchKey key = changed.isEmpty() ? this.watchService.take() :
+                    this.watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                final long now = System.nanoTime();
+                if (key != null) {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost, so reload every schema
+                            try (final DirectoryStream<Path> schemas = Files.newDirectoryStream(this.folder, "*.json")) {
+                                schemas.forEach(path -> changed.put(path, now));
+                            } catch (final IOException e) {
+                                e.printStackTrace();
+                            }
+                        } else {
+                            final Path path = this.folder.resolve((Path) event.context());
+                            if (path.getFileName().toString().endsWith(".json")) {
+                                changed.put(path, now);
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+                final Iterator<Map.Entry<Path, Long>> iterator = changed.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Map.Entry<Path, Long> entry = iterator.next();
+                    if (now - entry.getValue() >= TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS)) {
+                        iterator.remove();
+                        try {
+                            this.listener.accept(entry.getKey());
+                        } catch (final Throwable throwable) {
+                            throwable.printStackTrace();
+                        }
+                    }
+                }
+            }
+        } catch (final InterruptedException | ClosedWatchServiceException ignored) {
+            // Closed
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+//
+// MIT License
+//
+// Copyright (c) 2019 Alexander Söderberg
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files (the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions:
+//
+// The above copyright notice and this permission notice shall be included in all
+// copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+// SOFTWARE.
+//
+
+package com.intellectualsites.download;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Reverse index from the versions captured by artifact patterns to the builds
+ * that produced them, across all projects. Every type keeps its own sorted
+ * index in its snapshot, this one is updated from it whenever a type changes
+ */
+final class VersionIndex {
+
+    /**
+     * Orders version strings segment by segment, comparing numeric segments
+     * by value, so that 4.10 sorts after 4.9
+     */
+    static final Comparator<String> ORDER = VersionIndex::compare;
+
+    private final ConcurrentNavigableMap<String, Map<String, String>> builds = new ConcurrentSkipListMap<>(ORDER);
+    private final Map<String, Set<String>> indexed = new HashMap<>();
+
+    /**
+     * Re-index the versions of a type from its current snapshot
+     *
+     * @param type Type that changed
+     */
+    synchronized void update(final Project.Type type) {
+        final Project.Type.Snapshot snapshot = type.getSnapshot();
+        final Set<String> previous = this.indexed.put(type.getPath(), new HashSet<>(snapshot.getIndex().keySet()));
+        if (previous != null) {
+            previous.removeAll(snapshot.getIndex().keySet());
+            previous.forEach(version -> this.unindex(version, type.getPath()));
+        }
+        snapshot.getIndex().forEach((version, build) -> this.builds.compute(version, (key, paths) -> {
+            final Map<String, String> updated = paths == null ? new TreeMap<>() : new TreeMap<>(paths);
+            updated.put(type.getPath(), snapshot.getBuildIdentifier(build));
+            return Collections.unmodifiableMap(updated);
+        }));
+    }
+
+    /**
+     * Drop the versions of a type that no longer exists
+     *
+     * @param path Path of the removed type
+     */
+    synchronized void remove(final String path) {
+        final Set<String> previous = this.indexed.remove(path);
+        if (previous != null) {
+            previous.forEach(version -> this.unindex(version, path));
+        }
+    }
+
+    private void unindex(final String version, final String path) {
+        this.builds.computeIfPresent(version, (key, paths) -> {
+            final Map<String, String> updated = new TreeMap<>(paths);
+            updated.remove(path);
+            return updated.isEmpty() ? null : Collections.unmodifiableMap(updated);
+        });
+    }
+
+    /**
+     * Find the builds that produced a version
+     *
+     * @param version Captured version
+     * @return Build identifiers by type path, empty if the version is unknown
+     */
+    Map<String, String> find(final String version) {
+        return this.builds.getOrDefault(version, Collections.emptyMap());
+    }
+
+    /**
+     * Find the newest version matching a wildcard pattern
+     *
+     * @param pattern Version pattern, see {@link #latestMatching(NavigableMap, String)}
+     * @return Version and the builds that produced it, or null if none matches
+     */
+    Map.Entry<String, Map<String, String>> findLatest(final String pattern) {
+        return latestMatching(this.builds, pattern);
+    }
+
+    /**
+     * Find the newest entry of a version index matching a wildcard pattern.
+     * Patterns are either {@code *}, a version prefix ending in a separator
+     * followed by {@code *}, such as {@code 4.*}, or an exact version. The
+     * matching versions form a single range of the index, so the lookup
+     * doesn't scan versions outside of it
+     *
+     * @param index   Index sorted by {@link #ORDER}
+     * @param pattern Version pattern
+     * @param <V>     Value type
+     * @return Newest matching entry, or null if none matches
+     * @throws IllegalArgumentException If the pattern isn't supported
+     */
+    static <V> Map.Entry<String, V> latestMatching(final NavigableMap<String, V> index, final String pattern) {
+        final int wildcard = pattern.indexOf('*');
+        if (wildcard == -1) {
+            final V value = index.get(pattern);
+            return value == null ? null : Map.entry(pattern, value);
+        }
+        if (wildcard != pattern.length() - 1) {
+            throw new IllegalArgumentException("Wildcards are only supported at the end of a pattern");
+        }
+        if (wildcard == 0) {
+            return index.lastEntry();
+        }
+        final String prefix = pattern.substring(0, wildcard);
+        if (!isSeparator(prefix.charAt(prefix.length() - 1)) || prefix.length() == 1) {
+            throw new IllegalArgumentException("Wildcards must follow a version prefix and a separator");
+        }
+        // Every version starting with 4. sorts after 4 and before 5
+        final String base = prefix.substring(0, prefix.length() - 1);
+        int segmentStart = base.length();
+        while (segmentStart > 0 && !isSeparator(base.charAt(segmentStart - 1))) {
+            segmentStart--;
+        }
+        final String segment = base.substring(segmentStart);
+        final String upper;
+        if (isNumeric(segment)) {
+            upper = base.substring(0, segmentStart) + new BigInteger(segment).add(BigInteger.ONE);
+        } else {
+            upper = base + Character.MAX_VALUE;
+        }
+        // Versions such as 4-1 share the range with 4.1 but not the prefix
+        for (final Map.Entry<String, V> entry : index.subMap(base, false, upper, false).descendingMap().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static int compare(final String first, final String second) {
+        int firstIndex = 0;
+        int secondIndex = 0;
+        while (firstIndex < first.length() && secondIndex < second.length()) {
+            final int firstEnd = segmentEnd(first, firstIndex);
+            final int secondEnd = segmentEnd(second, secondIndex);
+            final String firstSegment = first.substring(firstIndex, firstEnd);
+            final String secondSegment = second.substring(secondIndex, secondEnd);
+            final boolean firstNumeric = isNumeric(firstSegment);
+            final boolean secondNumeric = isNumeric(secondSegment);
+            final int result;
+            if (firstNumeric && secondNumeric) {
+                result = new BigInteger(firstSegment).compareTo(new BigInteger(secondSegment));
+            } else if (firstNumeric != secondNumeric) {
+                result = firstNumeric ? -1 : 1;
+            } else {
+                result = firstSegment.compareTo(secondSegment);
+            }
+            if (result != 0) {
+                return result;
+            }
+            firstIndex = firstEnd + 1;
+            secondIndex = secondEnd + 1;
+        }
+        if (firstIndex < first.length() || secondIndex < second.length()) {
+            return firstIndex < first.length() ? 1 : -1;
+        }
+        // Equal segments with different separators, such as 4.1 and 4-1
+        return first.compareTo(second);
+    }
+
+    private static int segmentEnd(final String version, final int start) {
+        int end = start;
+        while (end < version.length() && !isSeparator(version.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isSeparator(final char character) {
+        return character == '.' || character == '-' || character == '_' || character == '+';
+    }
+
+    private static boolean isNumeric(final String segment) {
+        if (segment.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) < '0' || segment.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}